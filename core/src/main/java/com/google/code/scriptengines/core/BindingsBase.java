@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2006 Sun Microsystems, Inc. All rights reserved. 
+ * Use is subject to license terms.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are 
+ * permitted provided that the following conditions are met: Redistributions of source code 
+ * must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of 
+ * conditions and the following disclaimer in the documentation and/or other materials 
+ * provided with the distribution. Neither the name of the Sun Microsystems nor the names of 
+ * is contributors may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY 
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER 
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.google.code.scriptengines.core;
+
+import java.util.AbstractMap;
+import java.util.Map;
+
+import javax.script.Bindings;
+
+/**
+ * Abstract super class for Bindings implementations
+ *
+ * @version 1.0
+ * @author Mike Grogan
+ * @since 1.6
+ */
+public abstract class BindingsBase extends AbstractMap<String, Object>
+        implements Bindings {
+    
+    //AbstractMap methods
+    public Object get(Object name) {
+        checkKey(name);
+        return getImpl((String)name);
+    }
+    
+    public Object remove(Object key) {
+        checkKey(key);
+        return removeImpl((String)key);
+    }
+    
+    public Object put(String key, Object value) {
+        checkKey(key);
+        return putImpl(key, value);
+    }
+    
+    // BindingsEntrySet asks these of the bindings, so they cannot be left
+    // to AbstractMap, which would ask the entry set in turn. Implementations
+    // that know their size should override them.
+    public int size() {
+        return getNames().length;
+    }
+    
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+    
+    public void clear() {
+        for (String name : getNames()) {
+            removeImpl(name);
+        }
+    }
+    
+    public void putAll(Map<? extends String, ? extends Object> toMerge) {
+        for (Map.Entry<? extends String, ? extends Object> entry : toMerge.entrySet()) {
+            String key = entry.getKey();
+            checkKey(key);
+            putImpl(entry.getKey(), entry.getValue());
+        }
+    }
+    
+    /**
+     * Calls the visitor with every entry, without creating entry objects.
+     * The visitor must not change the bindings.
+     */
+    public void forEach(BindingsVisitor visitor) {
+        Cursor cursor = cursor();
+        while (cursor.next()) {
+            visitor.visit(cursor.getKey(), cursor.getValue());
+        }
+    }
+    
+    //BindingsBase methods
+    public abstract Object putImpl(String name, Object value);
+    public abstract Object getImpl(String name);
+    public abstract Object removeImpl(String name);
+    public abstract String[] getNames();
+    
+    /**
+     * Returns a cursor placed before the first entry. Used by
+     * BindingsEntrySet and forEach; the default walks the names returned
+     * by getNames and looks each value up once. Implementations that can
+     * walk their store directly should override it.
+     */
+    protected Cursor cursor() {
+        final String[] names = getNames();
+        return new Cursor() {
+            private int index = -1;
+            private Object value;
+            
+            public boolean next() {
+                if (index + 1 >= names.length) {
+                    return false;
+                }
+                value = get(names[++index]);
+                return true;
+            }
+            
+            public String getKey() {
+                return names[index];
+            }
+            
+            public Object getValue() {
+                return value;
+            }
+        };
+    }
+    
+    /**
+     * Position in the entries of a Bindings. Entries added or removed
+     * while a cursor is in use may or may not be seen.
+     */
+    protected abstract static class Cursor {
+        /** Moves to the next entry; returns false if there is none. */
+        public abstract boolean next();
+        public abstract String getKey();
+        public abstract Object getValue();
+    }
+    
+    protected void checkKey(Object key) {
+        if (key == null) {
+            throw new NullPointerException("key can not be null");
+        }
+        if (!(key instanceof String)) {
+            throw new ClassCastException("key should be String");
+        }
+        if (key.equals("")) {
+            throw new IllegalArgumentException("key can not be empty");
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2006 Sun Microsystems, Inc. All rights reserved. 
+ * Use is subject to license terms.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are 
+ * permitted provided that the following conditions are met: Redistributions of source code 
+ * must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of 
+ * conditions and the following disclaimer in the documentation and/or other materials 
+ * provided with the distribution. Neither the name of the Sun Microsystems nor the names of 
+ * is contributors may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY 
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER 
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.google.code.scriptengines.core;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Entry set implementation for Bindings implementations. Iterates over
+ * the entries as they are found in the bindings' store, with a new entry
+ * for each; {@link #forEach} visits them without allocating any.
+ *
+ * @version 1.0
+ * @author Mike Grogan
+ * @since 1.6
+ */
+public class BindingsEntrySet extends AbstractSet<Map.Entry<String, Object>> {
+    
+    private BindingsBase base;
+    
+    public BindingsEntrySet(BindingsBase base) {
+        this.base = base;
+    }
+    
+    public int size() {
+        return base.size();
+    }
+    
+    public boolean isEmpty() {
+        return base.isEmpty();
+    }
+    
+    public void clear() {
+        base.clear();
+    }
+    
+    public Iterator<Map.Entry<String, Object>> iterator() {
+        return new BindingsIterator();
+    }
+    
+    /**
+     * Calls the visitor with every entry.
+     */
+    public void forEach(BindingsVisitor visitor) {
+        base.forEach(visitor);
+    }
+    
+    public class BindingsEntry implements Map.Entry<String, Object> {
+        private String key;
+        private Object value;
+        
+        public BindingsEntry(String key) {
+            this(key, base.get(key));
+        }
+        
+        BindingsEntry(String key, Object value) {
+            this.key = key;
+            this.value = value;
+        }
+        
+        public Object setValue(Object value) {
+            Object ret = this.value;
+            base.put(key, value);
+            this.value = value;
+            return ret;
+        }
+        
+        public String getKey() {
+            return key;
+        }
+        
+        public Object getValue() {
+            return value;
+        }
+        
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            return key.equals(e.getKey())
+                    && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+        }
+        
+        public int hashCode() {
+            return key.hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+        
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+    
+    public class BindingsIterator implements Iterator<Map.Entry<String, Object>> {
+        
+        private final BindingsBase.Cursor cursor = base.cursor();
+        // key of the entry last returned
+        private String key;
+        // whether the cursor has been moved past the entry last returned
+        private boolean ahead = false;
+        private boolean hasNext;
+        private boolean stale = true;
+        
+        public boolean hasNext() {
+            if (!ahead) {
+                hasNext = cursor.next();
+                ahead = true;
+            }
+            return hasNext;
+        }
+       
+        public BindingsEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ahead = false;
+            stale = false;
+            key = cursor.getKey();
+            return new BindingsEntry(key, cursor.getValue());
+        }
+        
+        public void remove() {
+            if (stale) {
+                throw new IllegalStateException();
+            }
+            
+            stale = true;
+            base.remove(key);
+        }
+        
+    }
+    
+}
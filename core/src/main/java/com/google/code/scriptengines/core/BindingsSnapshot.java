@@ -0,0 +1,44 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.core;
+
+import java.util.Map;
+
+import javax.script.Bindings;
+
+/**
+ * Immutable copy of the contents of a Bindings, from which fresh Bindings
+ * with the same contents can be made any number of times. The Bindings
+ * made by {@link #restore} are {@link OverlayBindings} over the snapshot,
+ * so making one costs the same whatever the size of the snapshot, and
+ * changes to one only store what changed.
+ */
+public final class BindingsSnapshot {
+
+    private final Map<String, Object> contents;
+
+    public BindingsSnapshot(Map<String, ?> bindings) {
+        contents = new HashBindings(bindings);
+    }
+
+    /**
+     * Returns new Bindings holding the contents of this snapshot.
+     */
+    public Bindings restore() {
+        return new OverlayBindings(contents);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Keys for {@link ScriptCache} entries.
+ */
+public final class CacheKeys {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private CacheKeys() {
+    }
+
+    /**
+     * Returns a key for a script read from the given file. The key
+     * includes the file's canonical path, so that the same file reached
+     * through a relative path, <code>..</code> or a symbolic link has one
+     * entry, and its modification time and length, so an edited file gets
+     * a new key and is compiled again on its next use. An edit that keeps
+     * the length and is made within the file system's timestamp resolution
+     * of the previous one, as little as a second or two on some, goes
+     * unnoticed; the old script is used until the file changes again.
+     */
+    public static String forFile(File file) {
+        String path;
+        try {
+            path = file.getCanonicalPath();
+        } catch (IOException e) {
+            path = file.getAbsolutePath();
+        }
+        return "file:" + file.lastModified() + ":" + file.length() + ":" + path;
+    }
+
+    /**
+     * Returns a key for the given script source: a digest, so that keys
+     * stay short however large the scripts are.
+     */
+    public static String forSource(String source) {
+        try {
+            return forBytes(source.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns a key for a script given as bytes, such as the contents of
+     * a file: a digest of the bytes.
+     */
+    public static String forBytes(byte[] bytes) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] digest = md.digest(bytes);
+            StringBuilder key = new StringBuilder(5 + 2 * digest.length);
+            key.append("sha1:");
+            for (int i = 0; i < digest.length; i++) {
+                int b = digest[i] & 0xff;
+                key.append(HEX[b >> 4]).append(HEX[b & 0xf]);
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+}
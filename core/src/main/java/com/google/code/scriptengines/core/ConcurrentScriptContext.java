@@ -0,0 +1,258 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.core;
+
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.script.Bindings;
+import javax.script.ScriptContext;
+
+/**
+ * ScriptContext meant to be shared by threads, such as the default
+ * context of an engine. The engines' adapters recognize it and use
+ * {@link #getAttribute(String, Object)} and
+ * {@link #setAttribute(String, Object)}, which find a variable's scope
+ * and its value in a single lookup per scope, instead of calling
+ * <code>getAttributesScope</code> and then <code>getAttribute</code>
+ * under a lock.
+ * <p>
+ * Writes through the context hold a lock, the one
+ * {@link ScriptContexts#lock} returns for it. Reads of a scope whose
+ * bindings are a concurrent {@link HashBindings} or
+ * {@link FrozenBindings} take no lock at all; other bindings are read
+ * holding the lock, so that they are never read while another thread
+ * changes them through the context.
+ */
+public class ConcurrentScriptContext implements ScriptContext {
+
+    private static final List<Integer> SCOPES = Collections.unmodifiableList(
+            Arrays.asList(new Integer[] { ENGINE_SCOPE, GLOBAL_SCOPE }));
+    // returned by lookups for missing attributes
+    private static final Object ABSENT = new Object();
+
+    private volatile Bindings engineScope;
+    private volatile Bindings globalScope;
+    private volatile Reader reader;
+    private volatile Writer writer;
+    private volatile Writer errorWriter;
+    // held by writes, and by reads of bindings that are not concurrent
+    final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Creates a context with empty, concurrent engine scope bindings.
+     */
+    public ConcurrentScriptContext() {
+        this(new HashBindings(0, true));
+    }
+
+    public ConcurrentScriptContext(Bindings engineScope) {
+        if (engineScope == null) {
+            throw new NullPointerException("null engine scope bindings");
+        }
+        this.engineScope = engineScope;
+        reader = new InputStreamReader(System.in);
+        writer = new PrintWriter(System.out, true);
+        errorWriter = new PrintWriter(System.err, true);
+    }
+
+    /**
+     * Returns the value of the attribute in the lowest scope that has it,
+     * or <code>absent</code> if no scope has it.
+     */
+    public Object getAttribute(String name, Object absent) {
+        checkName(name);
+        Object ret = get(engineScope, name, absent);
+        if (ret == absent) {
+            ret = get(globalScope, name, absent);
+        }
+        return ret;
+    }
+
+    /**
+     * Sets the attribute in the lowest scope that has it, or in engine
+     * scope if none has it, and returns the old value.
+     */
+    public Object setAttribute(String name, Object value) {
+        checkName(name);
+        lock.lock();
+        try {
+            Bindings global = globalScope;
+            if (global != null && !engineScope.containsKey(name) && global.containsKey(name)) {
+                return global.put(name, value);
+            }
+            return engineScope.put(name, value);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the attribute from the lowest scope that has it, and
+     * returns its value.
+     */
+    public Object removeAttribute(String name) {
+        checkName(name);
+        lock.lock();
+        try {
+            Bindings global = globalScope;
+            if (global != null && !engineScope.containsKey(name)) {
+                return global.remove(name);
+            }
+            return engineScope.remove(name);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setBindings(Bindings bindings, int scope) {
+        switch (scope) {
+        case ENGINE_SCOPE:
+            if (bindings == null) {
+                throw new NullPointerException("null engine scope bindings");
+            }
+            engineScope = bindings;
+            break;
+        case GLOBAL_SCOPE:
+            globalScope = bindings;
+            break;
+        default:
+            throw new IllegalArgumentException("invalid scope");
+        }
+    }
+
+    public Bindings getBindings(int scope) {
+        switch (scope) {
+        case ENGINE_SCOPE:
+            return engineScope;
+        case GLOBAL_SCOPE:
+            return globalScope;
+        default:
+            throw new IllegalArgumentException("invalid scope");
+        }
+    }
+
+    public void setAttribute(String name, Object value, int scope) {
+        checkName(name);
+        Bindings bindings = getBindings(scope);
+        if (bindings != null) {
+            lock.lock();
+            try {
+                bindings.put(name, value);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    public Object getAttribute(String name, int scope) {
+        checkName(name);
+        Object ret = get(getBindings(scope), name, ABSENT);
+        return ret == ABSENT ? null : ret;
+    }
+
+    public Object removeAttribute(String name, int scope) {
+        checkName(name);
+        Bindings bindings = getBindings(scope);
+        if (bindings == null) {
+            return null;
+        }
+        lock.lock();
+        try {
+            return bindings.remove(name);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Object getAttribute(String name) {
+        Object ret = getAttribute(name, ABSENT);
+        return ret == ABSENT ? null : ret;
+    }
+
+    public int getAttributesScope(String name) {
+        checkName(name);
+        if (get(engineScope, name, ABSENT) != ABSENT) {
+            return ENGINE_SCOPE;
+        }
+        if (get(globalScope, name, ABSENT) != ABSENT) {
+            return GLOBAL_SCOPE;
+        }
+        return -1;
+    }
+
+    public Writer getWriter() {
+        return writer;
+    }
+
+    public Writer getErrorWriter() {
+        return errorWriter;
+    }
+
+    public void setWriter(Writer writer) {
+        this.writer = writer;
+    }
+
+    public void setErrorWriter(Writer writer) {
+        this.errorWriter = writer;
+    }
+
+    public Reader getReader() {
+        return reader;
+    }
+
+    public void setReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    public List<Integer> getScopes() {
+        return SCOPES;
+    }
+
+    private Object get(Bindings bindings, String name, Object absent) {
+        if (bindings == null) {
+            return absent;
+        }
+        if (bindings instanceof HashBindings && ((HashBindings) bindings).isConcurrent()) {
+            return ((HashBindings) bindings).getOrDefault(name, absent);
+        }
+        if (bindings instanceof FrozenBindings) {
+            return ((FrozenBindings) bindings).getOrDefault(name, absent);
+        }
+        lock.lock();
+        try {
+            return ScriptContexts.get(bindings, name, absent);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void checkName(String name) {
+        if (name == null) {
+            throw new NullPointerException("name is null");
+        }
+        if (name.length() == 0) {
+            throw new IllegalArgumentException("name is empty");
+        }
+    }
+}
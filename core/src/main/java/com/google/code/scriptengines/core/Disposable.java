@@ -0,0 +1,35 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.core;
+
+import javax.script.ScriptException;
+
+/**
+ * A script engine that holds resources beyond its own objects, such as
+ * threads or exit hooks of the language runtime. {@link ScriptEnginePool}
+ * disposes of the engines it retires or discards.
+ */
+public interface Disposable {
+
+    /**
+     * Releases what the engine holds. The engine is not used afterwards.
+     *
+     * @throws ScriptException if the language runtime failed while
+     *         shutting down
+     */
+    void dispose() throws ScriptException;
+}
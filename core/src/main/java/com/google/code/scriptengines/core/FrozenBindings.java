@@ -0,0 +1,285 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bindings that cannot be changed, for values that are set up once and
+ * then read by every script on every thread, typically the global scope:
+ * <pre>
+ * manager.setBindings(FrozenBindings.freeze(globals));
+ * </pre>
+ * The entries are laid out in a perfect hash table, so a lookup is a
+ * single probe with no loop and no lock. {@link ScriptContexts} and
+ * {@link ConcurrentScriptContext} read them without synchronizing.
+ * Every attempt to change the bindings, including through entries and
+ * iterators, throws <code>UnsupportedOperationException</code>.
+ */
+public final class FrozenBindings extends BindingsBase {
+
+    // bound on the seeds tried for a bucket before the table is enlarged
+    private static final int MAX_SEED = 1 << 16;
+
+    // the seed of each bucket, which places all its keys in free slots
+    private final int[] seeds;
+    private final int[] hashes;
+    private final String[] keys;
+    private final Object[] values;
+    // keys whose hash equals that of another key, which no seed can
+    // tell apart; rarely used, null if there are none
+    private final HashBindings overflow;
+    private final int size;
+    private Set<Map.Entry<String, Object>> entrySet;
+
+    public FrozenBindings(Map<String, ?> bindings) {
+        size = bindings.size();
+        List<String> names = new ArrayList<String>(size);
+        HashBindings same = null;
+        Map<Integer, String> seen = new HashMap<Integer, String>();
+        for (String name : bindings.keySet()) {
+            checkKey(name);
+            if (seen.put(hash(name), name) == null) {
+                names.add(name);
+            } else {
+                if (same == null) {
+                    same = new HashBindings();
+                }
+                same.put(name, bindings.get(name));
+            }
+        }
+        overflow = same;
+
+        int capacity = 4;
+        while (capacity - (capacity >> 2) < names.size()) {
+            capacity <<= 1;
+        }
+        int[] found;
+        while ((found = place(names, capacity)) == null) {
+            capacity <<= 1;
+        }
+        seeds = found;
+        hashes = new int[capacity];
+        keys = new String[capacity];
+        values = new Object[capacity];
+        for (String name : names) {
+            int h = hash(name);
+            int i = slot(h, seeds[h & (seeds.length - 1)], capacity - 1);
+            hashes[i] = h;
+            keys[i] = name.intern();
+            values[i] = bindings.get(name);
+        }
+    }
+
+    /**
+     * Returns frozen bindings with the entries of the map, which is the
+     * map itself if it is already frozen.
+     */
+    public static FrozenBindings freeze(Map<String, ?> bindings) {
+        if (bindings instanceof FrozenBindings) {
+            return (FrozenBindings) bindings;
+        }
+        return new FrozenBindings(bindings);
+    }
+
+    /**
+     * Returns the value of the key, or <code>defaultValue</code> if there
+     * is no entry for it.
+     */
+    public Object getOrDefault(Object key, Object defaultValue) {
+        checkKey(key);
+        String name = (String) key;
+        int h = hash(name);
+        int i = slot(h, seeds[h & (seeds.length - 1)], keys.length - 1);
+        if (hashes[i] == h) {
+            String k = keys[i];
+            if (k == name || name.equals(k)) {
+                return values[i];
+            }
+        }
+        return overflow == null ? defaultValue : overflow.getOrDefault(name, defaultValue);
+    }
+
+    public boolean containsKey(Object key) {
+        return getOrDefault(key, this) != this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        throw frozen();
+    }
+
+    public Set<Map.Entry<String, Object>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new BindingsEntrySet(this);
+        }
+        return entrySet;
+    }
+
+    //BindingsBase methods
+    public Object getImpl(String name) {
+        return getOrDefault(name, null);
+    }
+
+    public Object putImpl(String name, Object value) {
+        throw frozen();
+    }
+
+    public Object removeImpl(String name) {
+        throw frozen();
+    }
+
+    public String[] getNames() {
+        String[] ret = new String[size];
+        int n = 0;
+        Cursor cursor = cursor();
+        while (cursor.next()) {
+            ret[n++] = cursor.getKey();
+        }
+        return ret;
+    }
+
+    protected void checkKey(Object key) {
+        if (key instanceof String) {
+            if (((String) key).length() == 0) {
+                throw new IllegalArgumentException("key can not be empty");
+            }
+        } else {
+            super.checkKey(key);
+        }
+    }
+
+    protected Cursor cursor() {
+        final Cursor rest = overflow == null ? null : overflow.cursor();
+        return new Cursor() {
+            private int index = -1;
+
+            public boolean next() {
+                while (++index < keys.length) {
+                    if (keys[index] != null) {
+                        return true;
+                    }
+                }
+                return rest != null && rest.next();
+            }
+
+            public String getKey() {
+                return index < keys.length ? keys[index] : rest.getKey();
+            }
+
+            public Object getValue() {
+                return index < keys.length ? values[index] : rest.getValue();
+            }
+        };
+    }
+
+    private static UnsupportedOperationException frozen() {
+        return new UnsupportedOperationException("frozen bindings can not be changed");
+    }
+
+    private static int hash(String name) {
+        return HashBindings.hash(name);
+    }
+
+    private static int slot(int h, int seed, int mask) {
+        int x = (h ^ seed) * 0x85EBCA6B;
+        x ^= x >>> 13;
+        x *= 0xC2B2AE35;
+        x ^= x >>> 16;
+        return x & mask;
+    }
+
+    /*
+     * Finds a seed for each bucket such that all keys land in distinct
+     * slots of a table of the given capacity, placing the largest buckets
+     * first; returns null if some bucket has no such seed.
+     */
+    private static int[] place(List<String> names, int capacity) {
+        int bucketCount = 1;
+        while (bucketCount * 2 < names.size()) {
+            bucketCount <<= 1;
+        }
+        final int[][] buckets = new int[bucketCount][];
+        int[] counts = new int[bucketCount];
+        int[] h = new int[names.size()];
+        for (int n = 0; n < h.length; n++) {
+            h[n] = hash(names.get(n));
+            counts[h[n] & (bucketCount - 1)]++;
+        }
+        for (int b = 0; b < bucketCount; b++) {
+            buckets[b] = new int[counts[b]];
+            counts[b] = 0;
+        }
+        for (int n = 0; n < h.length; n++) {
+            int b = h[n] & (bucketCount - 1);
+            buckets[b][counts[b]++] = h[n];
+        }
+        Integer[] order = new Integer[bucketCount];
+        for (int b = 0; b < bucketCount; b++) {
+            order[b] = b;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return buckets[b].length - buckets[a].length;
+            }
+        });
+
+        int[] seeds = new int[bucketCount];
+        boolean[] taken = new boolean[capacity];
+        int[] slots = new int[names.size()];
+        for (Integer b : order) {
+            int[] bucket = buckets[b];
+            if (bucket.length == 0) {
+                break;
+            }
+            int seed = 0;
+            search:
+            for (;; seed++) {
+                if (seed == MAX_SEED) {
+                    return null;
+                }
+                for (int k = 0; k < bucket.length; k++) {
+                    int i = slot(bucket[k], seed, capacity - 1);
+                    if (taken[i]) {
+                        for (int j = 0; j < k; j++) {
+                            taken[slots[j]] = false;
+                        }
+                        continue search;
+                    }
+                    taken[i] = true;
+                    slots[k] = i;
+                }
+                break;
+            }
+            seeds[b] = seed;
+        }
+        return seeds;
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.core;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bindings backed by an open addressing hash table. Keys are interned and
+ * their hash codes kept in a separate array, so a lookup scans a few ints
+ * and usually ends with an identity comparison, and reads never take a
+ * lock.
+ * <p>
+ * A concurrent instance may be used by several threads at once: writes
+ * are serialized, while reads stay lock free and see every write that
+ * completed before they started. Other instances are no more thread safe
+ * than <code>SimpleBindings</code>.
+ */
+public class HashBindings extends BindingsBase {
+
+    private static final int MIN_CAPACITY = 8;
+    // stored for null values, so that an empty value slot next to a key
+    // can only mean that another thread is storing the entry
+    private static final Object NULL = new Object();
+    // value of a removed entry; the key stays until the table is rebuilt
+    private static final Object REMOVED = new Object();
+
+    private final boolean concurrent;
+    // replaced when rebuilt, and written after every change so that
+    // readers of the field see the change
+    private volatile Table table;
+    private volatile int size;
+    // slots holding a key, including removed entries
+    private int used;
+    private Set<Map.Entry<String, Object>> entrySet;
+
+    public HashBindings() {
+        this(0, false);
+    }
+
+    public HashBindings(int expectedSize) {
+        this(expectedSize, false);
+    }
+
+    public HashBindings(int expectedSize, boolean concurrent) {
+        if (expectedSize < 0) {
+            throw new IllegalArgumentException("negative size: " + expectedSize);
+        }
+        this.concurrent = concurrent;
+        table = new Table(capacityFor(expectedSize));
+    }
+
+    public HashBindings(Map<String, ?> bindings) {
+        this(bindings.size(), false);
+        putAll(bindings);
+    }
+
+    public boolean isConcurrent() {
+        return concurrent;
+    }
+
+    /**
+     * Returns the value of the key, or <code>defaultValue</code> if there
+     * is no entry for it; unlike <code>get</code>, tells a key with a null
+     * value from a missing one in a single lookup.
+     */
+    public Object getOrDefault(Object key, Object defaultValue) {
+        checkKey(key);
+        Object ret = find((String) key);
+        if (ret == null) {
+            return defaultValue;
+        }
+        return ret == NULL ? null : ret;
+    }
+
+    public boolean containsKey(Object key) {
+        checkKey(key);
+        return find((String) key) != null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        if (concurrent) {
+            synchronized (this) {
+                reset();
+            }
+        } else {
+            reset();
+        }
+    }
+
+    public Set<Map.Entry<String, Object>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new BindingsEntrySet(this);
+        }
+        return entrySet;
+    }
+
+    public void forEach(BindingsVisitor visitor) {
+        Table t = table;
+        int[] hashes = t.hashes;
+        Object[] entries = t.entries;
+        for (int i = 0; i < hashes.length; i++) {
+            Object value = entries[2 * i + 1];
+            if (hashes[i] != 0 && value != null && value != REMOVED) {
+                visitor.visit((String) entries[2 * i], value == NULL ? null : value);
+            }
+        }
+    }
+
+    //BindingsBase methods
+    public Object getImpl(String name) {
+        Object ret = find(name);
+        return ret == NULL ? null : ret;
+    }
+
+    public Object putImpl(String name, Object value) {
+        if (concurrent) {
+            synchronized (this) {
+                return store(name, value == null ? NULL : value);
+            }
+        }
+        return store(name, value == null ? NULL : value);
+    }
+
+    public Object removeImpl(String name) {
+        if (concurrent) {
+            synchronized (this) {
+                return store(name, REMOVED);
+            }
+        }
+        return store(name, REMOVED);
+    }
+
+    public String[] getNames() {
+        Table t = table;
+        String[] ret = new String[size];
+        int n = 0;
+        for (int i = 0; i < t.hashes.length && n < ret.length; i++) {
+            Object value = t.entries[2 * i + 1];
+            if (t.hashes[i] != 0 && value != null && value != REMOVED) {
+                ret[n++] = (String) t.entries[2 * i];
+            }
+        }
+        if (n < ret.length) {
+            String[] copy = new String[n];
+            System.arraycopy(ret, 0, copy, 0, n);
+            ret = copy;
+        }
+        return ret;
+    }
+
+    protected Cursor cursor() {
+        return new TableCursor();
+    }
+
+    protected void checkKey(Object key) {
+        if (key instanceof String) {
+            if (((String) key).length() == 0) {
+                throw new IllegalArgumentException("key can not be empty");
+            }
+        } else {
+            super.checkKey(key);
+        }
+    }
+
+    /*
+     * Returns the stored value of the key, NULL for a null value, or null
+     * if there is no entry.
+     */
+    private Object find(String key) {
+        Table t = table;
+        int[] hashes = t.hashes;
+        int mask = hashes.length - 1;
+        int h = hash(key);
+        for (int i = h & mask;; i = (i + 1) & mask) {
+            int stored = hashes[i];
+            if (stored == 0) {
+                return null;
+            }
+            if (stored == h) {
+                Object k = t.entries[2 * i];
+                if (k == key || key.equals(k)) {
+                    Object ret = t.entries[2 * i + 1];
+                    if (ret == null) {
+                        // the entry is being stored by another thread
+                        synchronized (this) {
+                            return find(key);
+                        }
+                    }
+                    return ret == REMOVED ? null : ret;
+                }
+            }
+        }
+    }
+
+    /*
+     * Stores a value, NULL or REMOVED under the key and returns the old
+     * value. Called by one thread at a time.
+     */
+    private Object store(String key, Object value) {
+        Table t = table;
+        int h = hash(key);
+        int mask = t.hashes.length - 1;
+        int i = h & mask;
+        for (;; i = (i + 1) & mask) {
+            int stored = t.hashes[i];
+            if (stored == 0) {
+                break;
+            }
+            Object k;
+            if (stored == h && ((k = t.entries[2 * i]) == key || key.equals(k))) {
+                Object old = t.entries[2 * i + 1];
+                t.entries[2 * i + 1] = value;
+                if (old == REMOVED) {
+                    if (value != REMOVED) {
+                        size++;
+                    }
+                    old = null;
+                } else if (value == REMOVED) {
+                    size--;
+                }
+                table = t;
+                return old == NULL ? null : old;
+            }
+        }
+        if (value == REMOVED) {
+            return null;
+        }
+        if (used >= t.hashes.length - (t.hashes.length >> 2)) {
+            t = rebuild(t, size + 1);
+            mask = t.hashes.length - 1;
+            for (i = h & mask; t.hashes[i] != 0; i = (i + 1) & mask) {
+            }
+        }
+        // the hash last, so that a reader never finds a slot without a
+        // key and a value
+        t.entries[2 * i + 1] = value;
+        t.entries[2 * i] = key.intern();
+        t.hashes[i] = h;
+        used++;
+        size++;
+        table = t;
+        return null;
+    }
+
+    /*
+     * Copies the entries into a new table with room for the given number
+     * of entries, leaving out removed ones.
+     */
+    private Table rebuild(Table old, int entries) {
+        Table t = new Table(capacityFor(entries));
+        int mask = t.hashes.length - 1;
+        int n = 0;
+        for (int j = 0; j < old.hashes.length; j++) {
+            int h = old.hashes[j];
+            Object value = old.entries[2 * j + 1];
+            if (h != 0 && value != REMOVED) {
+                int i = h & mask;
+                while (t.hashes[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                t.entries[2 * i] = old.entries[2 * j];
+                t.entries[2 * i + 1] = value;
+                t.hashes[i] = h;
+                n++;
+            }
+        }
+        used = n;
+        return t;
+    }
+
+    private void reset() {
+        table = new Table(MIN_CAPACITY);
+        used = 0;
+        size = 0;
+    }
+
+    // spreads String hash codes, which are often close to each other, over
+    // the table; never 0, which marks an empty slot
+    static int hash(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        h ^= h >>> 16;
+        return h == 0 ? 1 : h;
+    }
+
+    // smallest power of two that holds the entries below 3/4 load
+    private static int capacityFor(int entries) {
+        int ret = MIN_CAPACITY;
+        while (ret - (ret >> 2) <= entries) {
+            ret <<= 1;
+        }
+        return ret;
+    }
+
+    private static final class Table {
+        // 0 for an empty slot
+        final int[] hashes;
+        // key and value of each slot, side by side
+        final Object[] entries;
+
+        Table(int capacity) {
+            hashes = new int[capacity];
+            entries = new Object[2 * capacity];
+        }
+    }
+
+    /*
+     * Walks the table that is current when the cursor is created.
+     */
+    private final class TableCursor extends Cursor {
+        private final Table t = table;
+        private int index = -1;
+        private Object value;
+
+        public boolean next() {
+            int[] hashes = t.hashes;
+            Object[] entries = t.entries;
+            for (int i = index + 1; i < hashes.length; i++) {
+                Object v = entries[2 * i + 1];
+                if (hashes[i] != 0 && v != null && v != REMOVED) {
+                    index = i;
+                    value = v == NULL ? null : v;
+                    return true;
+                }
+            }
+            index = hashes.length;
+            return false;
+        }
+
+        public String getKey() {
+            return (String) t.entries[2 * index];
+        }
+
+        public Object getValue() {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.core;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded {@link ScriptCache} that drops the least recently used entry
+ * once it is full.
+ */
+public class LruScriptCache<V> implements ScriptCache<V> {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final Map<String, V> entries;
+    private volatile ScriptMetrics metrics;
+
+    public LruScriptCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public LruScriptCache(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        entries = new LinkedHashMap<String, V>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Reports every lookup to the given metrics as a hit or a miss.
+     */
+    public void setMetrics(ScriptMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public V get(String key) {
+        V ret;
+        synchronized (this) {
+            ret = entries.get(key);
+        }
+        ScriptMetrics m = metrics;
+        if (m != null) {
+            if (ret == null) {
+                m.cacheMiss();
+            } else {
+                m.cacheHit();
+            }
+        }
+        return ret;
+    }
+
+    public synchronized void put(String key, V value) {
+        entries.put(key, value);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
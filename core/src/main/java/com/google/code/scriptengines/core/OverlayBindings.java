@@ -0,0 +1,266 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.core;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writable Bindings layered over a base map that is shared and never
+ * changed, in the spirit of the local and global layers of
+ * {@link BindingsImpl}. Reads look in a small local layer and then in the
+ * base; writes and removals only touch the local layer, so the base can
+ * be shared by any number of overlays, for instance one per request over
+ * a large set of global values.
+ * <p>
+ * Creating an overlay costs the same whatever the size of the base, and
+ * so do <code>size()</code> and iterating over the entries, which walks
+ * the local layer and then the base without building their union or
+ * creating entry objects. The
+ * base must not be changed while overlays use it. Overlays are no more
+ * thread safe than <code>SimpleBindings</code>.
+ */
+public class OverlayBindings extends BindingsBase {
+
+    // local value of a key removed from the base
+    private static final Object REMOVED = new Object();
+    // returned by lookups for missing keys
+    private static final Object ABSENT = new Object();
+
+    private Map<String, ?> base;
+    // created on the first write
+    private HashBindings local;
+    // keys in the local layer but not in the base
+    private int added;
+    // keys of the base removed in the local layer
+    private int hidden;
+    private Set<Map.Entry<String, Object>> entrySet;
+
+    public OverlayBindings(Map<String, ?> base) {
+        if (base == null) {
+            throw new NullPointerException("null base");
+        }
+        this.base = base;
+    }
+
+    /**
+     * Returns the value of the key, or <code>defaultValue</code> if there
+     * is no entry for it.
+     */
+    public Object getOrDefault(Object key, Object defaultValue) {
+        checkKey(key);
+        Object ret = lookup((String) key);
+        if (ret == ABSENT || ret == REMOVED) {
+            return defaultValue;
+        }
+        return ret;
+    }
+
+    public boolean containsKey(Object key) {
+        checkKey(key);
+        Object ret = lookup((String) key);
+        return ret != ABSENT && ret != REMOVED;
+    }
+
+    public int size() {
+        return base.size() + added - hidden;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Drops the local layer and hides the base.
+     */
+    public void clear() {
+        base = Collections.<String, Object>emptyMap();
+        local = null;
+        added = 0;
+        hidden = 0;
+    }
+
+    public Set<Map.Entry<String, Object>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new BindingsEntrySet(this);
+        }
+        return entrySet;
+    }
+
+    //BindingsBase methods
+    public Object getImpl(String name) {
+        Object ret = lookup(name);
+        return ret == ABSENT || ret == REMOVED ? null : ret;
+    }
+
+    public Object putImpl(String name, Object value) {
+        if (local == null) {
+            local = new HashBindings();
+        }
+        Object old = local.getOrDefault(name, ABSENT);
+        local.put(name, value);
+        if (old == REMOVED) {
+            hidden--;
+            return null;
+        }
+        if (old != ABSENT) {
+            return old;
+        }
+        old = lookupBase(name);
+        if (old == ABSENT) {
+            added++;
+            return null;
+        }
+        return old;
+    }
+
+    public Object removeImpl(String name) {
+        Object old = local == null ? ABSENT : local.getOrDefault(name, ABSENT);
+        if (old == REMOVED) {
+            return null;
+        }
+        Object inBase = lookupBase(name);
+        if (old == ABSENT) {
+            if (inBase == ABSENT) {
+                return null;
+            }
+            old = inBase;
+        }
+        if (inBase != ABSENT) {
+            if (local == null) {
+                local = new HashBindings();
+            }
+            local.put(name, REMOVED);
+            hidden++;
+        } else {
+            local.remove(name);
+            added--;
+        }
+        return old;
+    }
+
+    public String[] getNames() {
+        String[] ret = new String[size()];
+        int n = 0;
+        Cursor cursor = cursor();
+        while (cursor.next()) {
+            ret[n++] = cursor.getKey();
+        }
+        return ret;
+    }
+
+    protected Cursor cursor() {
+        return new OverlayCursor();
+    }
+
+    /*
+     * Returns the local value of the key, which may be REMOVED, or the
+     * base value, or ABSENT.
+     */
+    private Object lookup(String name) {
+        if (local != null) {
+            Object ret = local.getOrDefault(name, ABSENT);
+            if (ret != ABSENT) {
+                return ret;
+            }
+        }
+        return lookupBase(name);
+    }
+
+    private Object lookupBase(String name) {
+        if (base instanceof HashBindings) {
+            return ((HashBindings) base).getOrDefault(name, ABSENT);
+        }
+        if (base instanceof FrozenBindings) {
+            return ((FrozenBindings) base).getOrDefault(name, ABSENT);
+        }
+        Object ret = base.get(name);
+        if (ret == null && !base.containsKey(name)) {
+            return ABSENT;
+        }
+        return ret;
+    }
+
+    /*
+     * Entries of the local layer, except removed ones, then entries of
+     * the base whose keys the local layer does not have.
+     */
+    private final class OverlayCursor extends Cursor {
+        private final HashBindings layer = local;
+        private final Cursor locals = layer == null ? null : layer.cursor();
+        private final Cursor bases;
+        private final Iterator<? extends Map.Entry<String, ?>> entries;
+        private boolean inBase = locals == null;
+        private String key;
+        private Object value;
+
+        OverlayCursor() {
+            if (base instanceof BindingsBase) {
+                bases = ((BindingsBase) base).cursor();
+                entries = null;
+            } else {
+                bases = null;
+                entries = base.entrySet().iterator();
+            }
+        }
+
+        public boolean next() {
+            if (!inBase) {
+                while (locals.next()) {
+                    Object v = locals.getValue();
+                    if (v != REMOVED) {
+                        key = locals.getKey();
+                        value = v;
+                        return true;
+                    }
+                }
+                inBase = true;
+            }
+            if (bases != null) {
+                while (bases.next()) {
+                    String k = bases.getKey();
+                    if (layer == null || !layer.containsKey(k)) {
+                        key = k;
+                        value = bases.getValue();
+                        return true;
+                    }
+                }
+            } else {
+                while (entries.hasNext()) {
+                    Map.Entry<String, ?> entry = entries.next();
+                    String k = entry.getKey();
+                    if (layer == null || !layer.containsKey(k)) {
+                        key = k;
+                        value = entry.getValue();
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public Object getValue() {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.core;
+
+import javax.script.ScriptException;
+
+/**
+ * Compiled script that can be run with its variables given as an array
+ * rather than a map. The names the script reads from its bindings are
+ * found when it is compiled; the caller fills an array with a value for
+ * each of them, in the same order, and evaluates the script with it, for
+ * instance reusing one array for many evaluations.
+ * <p>
+ * A null element means that the variable is not set, so it is looked up
+ * in the global scope, or is undefined, as if it were missing from the
+ * bindings. Names the script assigns are written back to the array.
+ */
+public interface PreparedScript {
+
+    /**
+     * Returns the names of the variables the script uses, in slot order.
+     * Names the engine itself defines for every evaluation are left out.
+     */
+    String[] getVariableNames();
+
+    /**
+     * Evaluates the script in the engine's default context, with engine
+     * scope bindings that read and write the given slots, as
+     * <code>eval(Bindings)</code> does. The array is used as is, not copied.
+     *
+     * @throws IllegalArgumentException if the array does not have one
+     * element for each variable name
+     */
+    Object eval(Object[] slots) throws ScriptException;
+}
@@ -0,0 +1,39 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.core;
+
+/**
+ * A script engine that can return to an earlier state.
+ * {@link ScriptEnginePool} uses it to hand out engines in the state they
+ * had after warm-up, whatever their previous users did with them.
+ */
+public interface Restorable {
+
+    /**
+     * Records the current engine scope bindings and whatever state the
+     * language keeps outside them. Values are not copied, so changes made
+     * to the objects they refer to are not undone by {@link #restore}.
+     */
+    void snapshot();
+
+    /**
+     * Returns to the state recorded by the last call to {@link #snapshot};
+     * does nothing if there was none. Called each time a pooled engine is
+     * checked in, so it has to be cheap.
+     */
+    void restore();
+}
@@ -0,0 +1,39 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.core;
+
+/**
+ * Cache of compiled scripts, keyed by strings that identify the source
+ * they were compiled from, such as those made by {@link CacheKeys}.
+ * Engines look a script up before compiling it and store what they
+ * compile; the implementation decides what to keep. Implementations
+ * must be safe for use by several threads.
+ */
+public interface ScriptCache<V> {
+
+    /**
+     * Returns the value stored under the key, or null if there is none.
+     */
+    V get(String key);
+
+    void put(String key, V value);
+
+    /**
+     * Removes all entries.
+     */
+    void clear();
+}
@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.core;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.script.Bindings;
+import javax.script.ScriptContext;
+import javax.script.SimpleScriptContext;
+
+/**
+ * Helpers for the engines' adapters between script scopes and
+ * <code>ScriptContext</code>.
+ */
+public final class ScriptContexts {
+
+    // guard contexts other than ConcurrentScriptContexts, picked by the
+    // context's identity hash; a power of two
+    private static final ReentrantLock[] LOCKS = new ReentrantLock[64];
+    static {
+        for (int i = 0; i < LOCKS.length; i++) {
+            LOCKS[i] = new ReentrantLock();
+        }
+    }
+
+    private ScriptContexts() {
+    }
+
+    /**
+     * Returns the lock the engines' adapters hold while they look up and
+     * change attributes of the context, so that a lookup of a variable's
+     * scope and the write that follows it are not interleaved with those
+     * of another thread. A lock rather than the context's monitor, so that
+     * virtual threads waiting for it do not pin their carrier thread.
+     * A {@link ConcurrentScriptContext} returns the lock its own writes
+     * hold; other contexts share a fixed set of locks, so the lock must
+     * only be held around calls on the context, never while running script
+     * code or taking the lock of another context.
+     */
+    public static Lock lock(ScriptContext context) {
+        if (context instanceof ConcurrentScriptContext) {
+            return ((ConcurrentScriptContext) context).lock;
+        }
+        int h = System.identityHashCode(context);
+        return LOCKS[(h ^ (h >>> 16)) & (LOCKS.length - 1)];
+    }
+
+    /**
+     * Returns the value of the named attribute in the lowest scope that
+     * has it, as <code>ScriptContext.getAttribute(name)</code> does, or
+     * <code>absent</code> if no scope has it. Saves calling both
+     * <code>getAttributesScope</code> and <code>getAttribute</code>; a
+     * <code>SimpleScriptContext</code> holding {@link HashBindings},
+     * {@link OverlayBindings}, {@link SlotBindings} or
+     * {@link FrozenBindings} is read with a single lookup per scope, and a
+     * {@link ConcurrentScriptContext} does the lookup itself.
+     */
+    public static Object getAttribute(ScriptContext context, String name, Object absent) {
+        if (context instanceof ConcurrentScriptContext) {
+            return ((ConcurrentScriptContext) context).getAttribute(name, absent);
+        }
+        if (context.getClass() == SimpleScriptContext.class) {
+            Object ret = get(context.getBindings(ScriptContext.ENGINE_SCOPE), name, absent);
+            if (ret == absent) {
+                ret = get(context.getBindings(ScriptContext.GLOBAL_SCOPE), name, absent);
+            }
+            return ret;
+        }
+        int scope = context.getAttributesScope(name);
+        return scope == -1 ? absent : context.getAttribute(name, scope);
+    }
+
+    /**
+     * Returns the value of the named attribute as
+     * {@link #getAttribute(ScriptContext, String, Object)} does, holding
+     * the given lock, the one {@link #lock} returns for the context, while
+     * reading scopes that may change. Scopes of a
+     * <code>SimpleScriptContext</code> that hold {@link FrozenBindings}
+     * are read without it.
+     */
+    public static Object getAttribute(ScriptContext context, String name, Object absent,
+                                      Lock lock) {
+        if (context instanceof ConcurrentScriptContext) {
+            return ((ConcurrentScriptContext) context).getAttribute(name, absent);
+        }
+        if (context.getClass() == SimpleScriptContext.class) {
+            Bindings engine = context.getBindings(ScriptContext.ENGINE_SCOPE);
+            Bindings global = context.getBindings(ScriptContext.GLOBAL_SCOPE);
+            if (engine instanceof FrozenBindings || global instanceof FrozenBindings) {
+                Object ret = get(engine, name, absent, lock);
+                if (ret == absent) {
+                    ret = get(global, name, absent, lock);
+                }
+                return ret;
+            }
+        }
+        lock.lock();
+        try {
+            return getAttribute(context, name, absent);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static Object get(Bindings bindings, String name, Object absent, Lock lock) {
+        if (bindings instanceof FrozenBindings) {
+            return ((FrozenBindings) bindings).getOrDefault(name, absent);
+        }
+        lock.lock();
+        try {
+            return get(bindings, name, absent);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Returns the value of the key in the bindings, or absent.
+     */
+    static Object get(Bindings bindings, String name, Object absent) {
+        if (bindings == null) {
+            return absent;
+        }
+        if (bindings instanceof HashBindings) {
+            return ((HashBindings) bindings).getOrDefault(name, absent);
+        }
+        if (bindings instanceof OverlayBindings) {
+            return ((OverlayBindings) bindings).getOrDefault(name, absent);
+        }
+        if (bindings instanceof SlotBindings) {
+            return ((SlotBindings) bindings).getOrDefault(name, absent);
+        }
+        if (bindings instanceof FrozenBindings) {
+            return ((FrozenBindings) bindings).getOrDefault(name, absent);
+        }
+        return bindings.containsKey(name) ? bindings.get(name) : absent;
+    }
+}
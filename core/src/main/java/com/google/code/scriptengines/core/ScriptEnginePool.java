@@ -0,0 +1,1219 @@
+/*
+ * Copyright (C) 2006 Sun Microsystems, Inc. All rights reserved. 
+ * Use is subject to license terms.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are 
+ * permitted provided that the following conditions are met: Redistributions of source code 
+ * must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of 
+ * conditions and the following disclaimer in the documentation and/or other materials 
+ * provided with the distribution. Neither the name of the Sun Microsystems nor the names of 
+ * is contributors may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY 
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER 
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.google.code.scriptengines.core;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+
+/**
+ * Simple pool of script engines with configurable size and ScriptEngine type.
+ * Used by HttpScriptServlets to prevent concurrent executions of scripts on 
+ * multiple threads.
+ * <p>
+ * At most <code>capacity</code> engines are checked out at a time; engines
+ * are created on demand up to that number. Checking out an idle engine
+ * takes no lock, and a thread that arrives while an engine is free takes
+ * it even if other threads are waiting. A fair pool reuses idle engines
+ * in turn, so that they age and warm up evenly; an unfair pool always
+ * reuses the most recently returned engine, which is the one most
+ * likely to be warm. Waiting threads are not served in arrival order:
+ * that would hand every engine over through a parked thread once more
+ * threads than engines compete, which cut throughput to a fraction.
+ * <p>
+ * A thread-affine pool binds an engine to each thread that checks one
+ * out, as long as fewer than <code>capacity - 1</code> engines are bound,
+ * so at least one engine always stays shared. Later checkouts on that
+ * thread return its own engine without touching shared state; other
+ * threads, and nested checkouts, use the shared engines. Engines bound
+ * to threads that have terminated go back to the shared engines when
+ * the pool runs out. A bound engine may be handed to another thread and
+ * checked in or discarded there.
+ * <p>
+ * Engines can be created ahead of use with {@link #prefill}, and retired
+ * after a number of uses or an age. A retired engine keeps serving until
+ * a replacement has been built on a background thread and is swapped in
+ * when it is next checked in or out, so retirement never makes a caller
+ * wait for an engine to be built. While a replacement is being built
+ * there is one engine more than the capacity. Retired and discarded
+ * engines that are {@link Disposable} are disposed of.
+ * <p>
+ * {@link #checkOutAsync} and {@link #withEngine(EngineTask, Executor)}
+ * wait for an engine without blocking a thread: the request is queued
+ * and completed by whichever thread returns an engine.
+ * <p>
+ * Each new engine can be warmed up by a task set with {@link #setWarmUp},
+ * and with {@link #setResetOnCheckIn} returned to the state the warm-up
+ * left it in each time it is checked in, so that nothing one user puts
+ * into its engine scope is seen by the next.
+ * <p>
+ * Checkouts, creation and retirement of engines can be reported to a
+ * {@link ScriptMetrics} set with {@link #setMetrics}.
+ */
+public class ScriptEnginePool {
+    
+    private static final int DEFAULT_CAPACITY = 10;
+    private final int capacity;
+    private final ScriptEngineFactory fact;
+    private final boolean multiThreaded;
+    private final boolean fair;
+    private final boolean threadAffine;
+
+    // the single engine shared by all threads, when multiThreaded
+    private volatile Shared shared;
+    // the shared engine and discarded ones still checked out, by engine
+    private final ConcurrentHashMap<ScriptEngine, Shared> sharedEngines =
+            new ConcurrentHashMap<ScriptEngine, Shared>();
+
+    // one permit per engine that may be checked out; never fair, see above
+    private final Semaphore permits;
+    // idle engines, FIFO for a fair pool and LIFO otherwise
+    private final ConcurrentLinkedQueue<ScriptEngine> queue;
+    private final AtomicReference<Node> stack;
+    // engines created for checkout, counting each replacement only once
+    private final AtomicInteger created = new AtomicInteger();
+    // engines checked out and not yet checked in or discarded
+    private final ConcurrentHashMap<ScriptEngine, Boolean> checkedOut =
+            new ConcurrentHashMap<ScriptEngine, Boolean>();
+
+    // engines bound to threads, when threadAffine; each keeps its permit
+    private final ThreadLocal<Binding> local = new ThreadLocal<Binding>();
+    private final ConcurrentLinkedQueue<Binding> bindings =
+            new ConcurrentLinkedQueue<Binding>();
+    // the binding of each bound engine, found from whichever thread
+    // checks the engine in or discards it
+    private final ConcurrentHashMap<ScriptEngine, Binding> boundEngines =
+            new ConcurrentHashMap<ScriptEngine, Binding>();
+    private final AtomicInteger bound = new AtomicInteger();
+
+    // asynchronous checkouts waiting for an engine
+    private final ConcurrentLinkedQueue<Waiter> pending =
+            new ConcurrentLinkedQueue<Waiter>();
+    // tasks that have an engine and were passed to their executor, but
+    // have not started yet
+    private final ConcurrentLinkedQueue<TaskFuture<?>> scheduled =
+            new ConcurrentLinkedQueue<TaskFuture<?>>();
+
+    // retirement limits, 0 for none
+    private volatile int maxUses;
+    private volatile long maxAge;
+    // use counts of engines created while retirement is enabled
+    private final ConcurrentHashMap<ScriptEngine, Lifetime> lifetimes =
+            new ConcurrentHashMap<ScriptEngine, Lifetime>();
+    // builds replacement engines, created on first use
+    private ExecutorService builder;
+
+    private volatile ScriptMetrics metrics;
+    private volatile EngineTask<?> warmUp;
+    private volatile boolean resetOnCheckIn;
+    // engine scope after warm-up of engines that are not Restorable
+    private final ConcurrentHashMap<ScriptEngine, BindingsSnapshot> snapshots =
+            new ConcurrentHashMap<ScriptEngine, BindingsSnapshot>();
+
+    /**
+     * @param capacity the most engines checked out at a time
+     * @param fair whether idle engines are reused in turn rather than
+     *        most recently returned first
+     * @param threadAffine whether engines are bound to the threads that
+     *        check them out
+     */
+    public ScriptEnginePool(ScriptEngineFactory fact, int capacity, boolean fair,
+                            boolean threadAffine) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.fact = fact;
+        this.fair = fair;
+        this.threadAffine = threadAffine;
+        Object value = fact.getParameter("THREADING");
+        if ("THREAD-ISOLATED".equals(value) || "STATELESS".equals(value)) {
+            multiThreaded = true;
+            //just use a single engine
+            capacity = 1;
+        } else {
+            multiThreaded = false;
+        }
+        this.capacity = capacity;
+        permits = new Semaphore(capacity);
+        if (fair) {
+            queue = new ConcurrentLinkedQueue<ScriptEngine>();
+            stack = null;
+        } else {
+            queue = null;
+            stack = new AtomicReference<Node>();
+        }
+    }
+
+    public ScriptEnginePool(ScriptEngineFactory fact, int capacity, boolean fair) {
+        this(fact, capacity, fair, false);
+    }
+
+    public ScriptEnginePool(ScriptEngineFactory fact, int capacity) {
+        this(fact, capacity, false);
+    }
+
+    public ScriptEnginePool(ScriptEngineFactory fact) {
+        this(fact, DEFAULT_CAPACITY);
+    }
+    
+    public ScriptEnginePool(ScriptEngineFactory fact, ScriptEngine eng) {
+        this(fact);
+        if (multiThreaded) {
+            shared = new Shared(eng);
+            sharedEngines.put(eng, shared);
+        } else {
+            created.incrementAndGet();
+            push(eng);
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Retires engines after they have been checked out the given number
+     * of times; 0, the default, keeps them forever. Applies to engines
+     * created after the call.
+     */
+    public void setMaxUses(int maxUses) {
+        this.maxUses = maxUses;
+    }
+
+    /**
+     * Retires engines once they reach the given age; 0, the default,
+     * keeps them forever. Applies to engines created after the call.
+     */
+    public void setMaxAge(long maxAge, TimeUnit unit) {
+        this.maxAge = unit.toNanos(maxAge);
+    }
+
+    /**
+     * Reports what the pool does to the given metrics; null, the default,
+     * for none.
+     */
+    public void setMetrics(ScriptMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Runs the task on every engine the pool creates from now on, before
+     * the engine is first checked out. An engine whose warm-up fails is
+     * not used; the failure is passed on to the caller that needed the
+     * engine.
+     */
+    public void setWarmUp(EngineTask<?> warmUp) {
+        this.warmUp = warmUp;
+    }
+
+    /**
+     * Returns engines to the state they had after warm-up each time they
+     * are checked in. Engines that are {@link Restorable} restore
+     * themselves; for others the engine scope bindings are replaced by a
+     * copy of those they had after warm-up, which costs nothing more
+     * until the copy is modified. Applies to engines created after the
+     * call; the single engine of a pool of thread-isolated engines is
+     * shared by all threads and never reset.
+     */
+    public void setResetOnCheckIn(boolean resetOnCheckIn) {
+        this.resetOnCheckIn = resetOnCheckIn;
+    }
+
+    /**
+     * Creates engines ahead of use, in parallel on up to one thread per
+     * processor, and returns once they are all idle in the pool. Meant to
+     * be called right after the pool is created; engines the pool already
+     * has count towards the number, so it never grows beyond
+     * <code>capacity</code> engines.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public void prefill(int count) throws InterruptedException {
+        if (multiThreaded) {
+            getShared();
+            return;
+        }
+        int n;
+        do {
+            n = created.get();
+            count = Math.min(count, capacity - n);
+            if (count <= 0) {
+                return;
+            }
+        } while (!created.compareAndSet(n, n + count));
+        int threads = Math.min(count, Runtime.getRuntime().availableProcessors());
+        ExecutorService exec = Executors.newFixedThreadPool(threads);
+        try {
+            List<Callable<ScriptEngine>> tasks = new ArrayList<Callable<ScriptEngine>>(count);
+            for (int i = 0; i < count; i++) {
+                tasks.add(new Callable<ScriptEngine>() {
+                    public ScriptEngine call() {
+                        try {
+                            return newEngine();
+                        } catch (RuntimeException e) {
+                            created.decrementAndGet();
+                            throw e;
+                        } catch (Error e) {
+                            created.decrementAndGet();
+                            throw e;
+                        }
+                    }
+                });
+            }
+            for (Future<ScriptEngine> engine : exec.invokeAll(tasks)) {
+                try {
+                    push(engine.get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IllegalStateException(cause);
+                }
+            }
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    /**
+     * Stops the background thread that builds replacement engines.
+     * Engines due for retirement then stay in service.
+     */
+    public synchronized void shutdown() {
+        if (builder != null) {
+            builder.shutdown();
+        }
+    }
+    
+    /**
+     * Checks out an engine, waiting as long as it takes for one to become
+     * available.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public ScriptEngine checkOut() throws InterruptedException {
+        ScriptMetrics m = metrics;
+        long start = m == null ? 0 : System.nanoTime();
+        ScriptEngine ret;
+        if (multiThreaded) {
+            ret = checkOutShared();
+        } else {
+            ret = checkOutBound();
+            if (ret == null) {
+                acquire(-1, null);
+                ret = bind(take());
+            }
+            checkedOut.put(ret, Boolean.TRUE);
+        }
+        if (m != null) {
+            m.engineCheckedOut(System.nanoTime() - start);
+        }
+        return ret;
+    }
+
+    /**
+     * Checks out an engine, waiting at most the given time for one to
+     * become available.
+     *
+     * @return the engine, or null if none became available in time
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public ScriptEngine checkOut(long timeout, TimeUnit unit)
+    throws InterruptedException {
+        ScriptMetrics m = metrics;
+        long start = m == null ? 0 : System.nanoTime();
+        ScriptEngine ret;
+        if (multiThreaded) {
+            ret = checkOutShared();
+        } else {
+            ret = checkOutBound();
+            if (ret == null) {
+                if (!acquire(timeout, unit)) {
+                    return null;
+                }
+                ret = bind(take());
+            }
+            checkedOut.put(ret, Boolean.TRUE);
+        }
+        if (m != null) {
+            m.engineCheckedOut(System.nanoTime() - start);
+        }
+        return ret;
+    }
+    
+    /**
+     * Returns a checked out engine to the pool.
+     *
+     * @throws IllegalArgumentException if the engine is not checked out
+     *         of this pool, for instance because it was checked in already
+     */
+    public void checkIn(ScriptEngine eng) {
+        if (multiThreaded) {
+            //pool always contains exactly one engine
+            leaveShared(owned(eng));
+        } else if (checkedOut.remove(eng) == null) {
+            throw notCheckedOut(eng);
+        }
+        ScriptMetrics m = metrics;
+        if (m != null) {
+            m.engineCheckedIn();
+        }
+        if (multiThreaded) {
+            return;
+        }
+        
+        if (resetOnCheckIn) {
+            reset(eng);
+        }
+        if (threadAffine) {
+            Binding binding = boundEngines.get(eng);
+            if (binding != null) {
+                if (retiring()) {
+                    rebind(binding, renew(eng, true));
+                }
+                binding.busy = false;
+                // the engine was passed on and its owner has died since
+                if (binding.owner.isAlive() || !unbind(binding)) {
+                    return;
+                }
+                eng = binding.engine;
+                push(eng);
+                release();
+                return;
+            }
+        }
+        if (retiring()) {
+            eng = renew(eng, true);
+        }
+        push(eng);
+        release();
+    }
+
+    /**
+     * Checks out an engine without blocking. The returned future completes
+     * once an engine is available; the engine must then be checked in as
+     * usual. Cancelling the future before it completes withdraws the
+     * request.
+     */
+    public Future<ScriptEngine> checkOutAsync() {
+        EngineFuture ret = new EngineFuture();
+        submit(ret);
+        return ret;
+    }
+
+    /**
+     * Runs the task with an engine from the pool, waiting for one as
+     * {@link #checkOut()} does, and checks the engine in afterwards.
+     */
+    public <T> T withEngine(EngineTask<T> task) throws Exception {
+        ScriptEngine eng = checkOut();
+        try {
+            return task.run(eng);
+        } finally {
+            checkIn(eng);
+        }
+    }
+
+    /**
+     * Runs the task on the given executor as soon as an engine is
+     * available and checks the engine in afterwards. No thread is held
+     * while waiting for the engine. Cancelling the future before the task
+     * starts returns its engine at once; the engine of a task left
+     * unstarted by an ExecutorService that has terminated is taken back
+     * when the pool runs out of engines.
+     */
+    public <T> Future<T> withEngine(EngineTask<T> task, Executor executor) {
+        TaskFuture<T> ret = new TaskFuture<T>(task, executor);
+        submit(ret);
+        return ret;
+    }
+
+    /**
+     * Work to run with an engine from the pool.
+     */
+    public interface EngineTask<T> {
+        T run(ScriptEngine engine) throws Exception;
+    }
+
+    /**
+     * Takes a checked out engine out of the pool instead of checking it
+     * in, for instance after it failed in a way that leaves it unusable.
+     * A replacement is built on a background thread. The single engine of
+     * a pool of thread-isolated engines is replaced for later checkouts
+     * and disposed of once every thread still using it has checked it in.
+     *
+     * @throws IllegalArgumentException if the engine is not checked out
+     *         of this pool
+     */
+    public void discard(ScriptEngine eng) {
+        Shared s = null;
+        if (multiThreaded) {
+            s = owned(eng);
+        } else if (checkedOut.remove(eng) == null) {
+            throw notCheckedOut(eng);
+        }
+        ScriptMetrics m = metrics;
+        if (m != null) {
+            m.engineRetired();
+        }
+        if (multiThreaded) {
+            s.dropped = true;
+            synchronized (this) {
+                if (shared == s) {
+                    shared = null;
+                }
+            }
+            leaveShared(s);
+            return;
+        }
+        if (threadAffine) {
+            Binding binding = boundEngines.get(eng);
+            if (binding != null && unbind(binding)
+                    && binding.owner == Thread.currentThread()) {
+                local.remove();
+            }
+        }
+        Lifetime lifetime = lifetimes.remove(eng);
+        snapshots.remove(eng);
+        dispose(eng);
+        if (lifetime != null && lifetime.replacement != null) {
+            dispose(lifetime.replacement);
+        }
+        // the permit is released once the replacement is idle
+        Runnable replace = new Runnable() {
+            public void run() {
+                boolean done = false;
+                try {
+                    push(newEngine());
+                    done = true;
+                } finally {
+                    if (!done) {
+                        created.decrementAndGet();
+                    }
+                    release();
+                }
+            }
+        };
+        try {
+            getBuilder().execute(replace);
+        } catch (RejectedExecutionException e) {
+            created.decrementAndGet();
+            release();
+        }
+    }
+
+    /*
+     * Returns the engine bound to the current thread if it is not in use.
+     */
+    private ScriptEngine checkOutBound() {
+        if (threadAffine) {
+            Binding binding = local.get();
+            if (binding != null && binding.unbound) {
+                local.remove();
+                return null;
+            }
+            if (binding != null && !binding.busy) {
+                binding.busy = true;
+                if (retiring()) {
+                    rebind(binding, renew(binding.engine, false));
+                }
+                return binding.engine;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Takes a permit; a negative timeout waits without limit. Before
+     * waiting, takes back engines that are held by no one.
+     */
+    private boolean acquire(long timeout, TimeUnit unit) throws InterruptedException {
+        if (threadAffine || !scheduled.isEmpty()) {
+            if (permits.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+                return true;
+            }
+            reclaim();
+        }
+        if (timeout < 0) {
+            permits.acquire();
+            return true;
+        }
+        return permits.tryAcquire(timeout, unit);
+    }
+
+    /*
+     * Binds a freshly checked out engine to the current thread if the
+     * thread has none yet and the limit allows it.
+     */
+    private ScriptEngine bind(ScriptEngine eng) {
+        if (threadAffine && checkUnbound()) {
+            int n;
+            do {
+                n = bound.get();
+                if (n >= capacity - 1) {
+                    return eng;
+                }
+            } while (!bound.compareAndSet(n, n + 1));
+            Binding binding = new Binding(Thread.currentThread(), eng);
+            boundEngines.put(eng, binding);
+            bindings.add(binding);
+            local.set(binding);
+        }
+        return eng;
+    }
+
+    /*
+     * Returns true if the current thread has no engine bound to it.
+     */
+    private boolean checkUnbound() {
+        Binding binding = local.get();
+        if (binding == null) {
+            return true;
+        }
+        if (binding.unbound) {
+            local.remove();
+            return true;
+        }
+        return false;
+    }
+
+    private void submit(Waiter waiter) {
+        if (multiThreaded) {
+            ScriptEngine eng = checkOutShared();
+            if (waiter.offer(eng)) {
+                ScriptMetrics m = metrics;
+                if (m != null) {
+                    m.engineCheckedOut(System.nanoTime() - waiter.queued());
+                }
+            } else {
+                leaveShared(sharedEngines.get(eng));
+            }
+            return;
+        }
+        if ((threadAffine || !scheduled.isEmpty()) && permits.availablePermits() == 0) {
+            reclaim();
+        }
+        pending.add(waiter);
+        dispatch();
+    }
+
+    private void release() {
+        permits.release();
+        if (!pending.isEmpty()) {
+            dispatch();
+        }
+    }
+
+    /*
+     * Hands engines to queued asynchronous checkouts while there are
+     * permits. Called after queueing a request and after returning a
+     * permit, so a request cannot be missed by both sides.
+     */
+    private void dispatch() {
+        while (!pending.isEmpty() && permits.tryAcquire()) {
+            Waiter waiter = pending.poll();
+            if (waiter == null || waiter.isDone()) {
+                permits.release();
+                continue;
+            }
+            ScriptEngine eng;
+            try {
+                eng = take();
+            } catch (RuntimeException e) {
+                waiter.fail(e);
+                continue;
+            }
+            // before the engine is handed over and maybe checked in at once
+            checkedOut.put(eng, Boolean.TRUE);
+            if (waiter.offer(eng)) {
+                ScriptMetrics m = metrics;
+                if (m != null) {
+                    m.engineCheckedOut(System.nanoTime() - waiter.queued());
+                }
+            } else {
+                checkedOut.remove(eng);
+                push(eng);
+                permits.release();
+            }
+        }
+    }
+
+    /*
+     * Returns the idle engines of dead threads to the shared engines, and
+     * the engines of tasks whose executor terminated without running them.
+     * An engine still checked out elsewhere goes back when it is checked in.
+     */
+    private void reclaim() {
+        for (Iterator<TaskFuture<?>> it = scheduled.iterator(); it.hasNext();) {
+            TaskFuture<?> task = it.next();
+            if (task.isDropped()) {
+                task.cancel(false);
+            }
+        }
+        for (Iterator<Binding> it = bindings.iterator(); it.hasNext();) {
+            Binding binding = it.next();
+            if (!binding.owner.isAlive() && !binding.busy && unbind(binding)) {
+                push(binding.engine);
+                release();
+            }
+        }
+    }
+
+    /*
+     * Removes a binding; returns false if another thread already did.
+     * The owner drops it from its thread local on its next checkout.
+     */
+    private boolean unbind(Binding binding) {
+        if (!bindings.remove(binding)) {
+            return false;
+        }
+        boundEngines.remove(binding.engine, binding);
+        bound.decrementAndGet();
+        binding.unbound = true;
+        return true;
+    }
+
+    /*
+     * Swaps the engine of a binding for its replacement, if it has one.
+     */
+    private void rebind(Binding binding, ScriptEngine eng) {
+        ScriptEngine old = binding.engine;
+        if (eng != old) {
+            boundEngines.put(eng, binding);
+            binding.engine = eng;
+            boundEngines.remove(old, binding);
+        }
+    }
+
+    /*
+     * Takes an idle engine, or creates one, for a caller holding a permit.
+     * There is always an idle engine unless fewer engines than permits
+     * have been created so far.
+     */
+    private ScriptEngine take() {
+        ScriptEngine ret = fair ? queue.poll() : pop();
+        if (ret != null && retiring()) {
+            ret = renew(ret, false);
+        }
+        if (ret == null) {
+            created.incrementAndGet();
+            try {
+                ret = newEngine();
+            } catch (RuntimeException e) {
+                created.decrementAndGet();
+                permits.release();
+                throw e;
+            }
+        }
+        return ret;
+    }
+
+    private ScriptEngine newEngine() {
+        ScriptMetrics m = metrics;
+        long start = m == null ? 0 : System.nanoTime();
+        ScriptEngine eng = fact.getScriptEngine();
+        EngineTask<?> task = warmUp;
+        if (task != null) {
+            try {
+                task.run(eng);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException("engine warm-up failed", e);
+            }
+        }
+        if (resetOnCheckIn) {
+            if (eng instanceof Restorable) {
+                ((Restorable) eng).snapshot();
+            } else {
+                snapshots.put(eng, new BindingsSnapshot(
+                        eng.getBindings(ScriptContext.ENGINE_SCOPE)));
+            }
+        }
+        if (retiring()) {
+            lifetimes.put(eng, new Lifetime(System.nanoTime()));
+        }
+        if (m != null) {
+            m.engineCreated(System.nanoTime() - start);
+        }
+        return eng;
+    }
+
+    private void reset(ScriptEngine eng) {
+        if (eng instanceof Restorable) {
+            ((Restorable) eng).restore();
+        } else {
+            BindingsSnapshot snapshot = snapshots.get(eng);
+            if (snapshot != null) {
+                eng.setBindings(snapshot.restore(), ScriptContext.ENGINE_SCOPE);
+            }
+        }
+    }
+
+    private boolean retiring() {
+        return maxUses > 0 || maxAge > 0;
+    }
+
+    /*
+     * Returns the replacement of a retired engine if it is ready, and the
+     * engine itself otherwise. When the engine is being checked in, counts
+     * the use and starts building a replacement once the engine is due.
+     */
+    private ScriptEngine renew(ScriptEngine eng, boolean used) {
+        final Lifetime lifetime = lifetimes.get(eng);
+        if (lifetime == null) {
+            return eng;
+        }
+        ScriptEngine next = lifetime.replacement;
+        if (next != null) {
+            lifetimes.remove(eng);
+            snapshots.remove(eng);
+            dispose(eng);
+            ScriptMetrics m = metrics;
+            if (m != null) {
+                m.engineRetired();
+            }
+            return next;
+        }
+        if (used && !lifetime.replacing && lifetime.isDue(++lifetime.uses)) {
+            lifetime.replacing = true;
+            Runnable replace = new Runnable() {
+                public void run() {
+                    try {
+                        lifetime.replacement = newEngine();
+                    } catch (RuntimeException e) {
+                        // keep the old engine and try again later
+                        lifetime.replacing = false;
+                    }
+                }
+            };
+            try {
+                getBuilder().execute(replace);
+            } catch (RejectedExecutionException e) {
+                lifetime.replacing = false;
+            }
+        }
+        return eng;
+    }
+
+    /*
+     * Disposes of an engine the pool no longer uses, on the builder thread
+     * so that the caller does not wait for it.
+     */
+    private void dispose(ScriptEngine eng) {
+        if (!(eng instanceof Disposable)) {
+            return;
+        }
+        final Disposable d = (Disposable) eng;
+        Runnable close = new Runnable() {
+            public void run() {
+                try {
+                    d.dispose();
+                } catch (Exception e) {
+                    // nothing left to do with a broken engine
+                }
+            }
+        };
+        try {
+            getBuilder().execute(close);
+        } catch (RejectedExecutionException e) {
+            close.run();
+        }
+    }
+
+    private synchronized ExecutorService getBuilder() {
+        if (builder == null) {
+            builder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ScriptEnginePool builder");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return builder;
+    }
+
+    private Shared getShared() {
+        Shared ret = shared;
+        if (ret == null) {
+            synchronized (this) {
+                ret = shared;
+                if (ret == null) {
+                    ret = new Shared(newEngine());
+                    sharedEngines.put(ret.engine, ret);
+                    shared = ret;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /*
+     * Counts a checkout of the shared engine, passing over one that is
+     * being discarded.
+     */
+    private ScriptEngine checkOutShared() {
+        for (;;) {
+            Shared s = getShared();
+            if (s.enter()) {
+                if (!s.dropped) {
+                    return s.engine;
+                }
+                // discarded meanwhile, and possibly left to us to dispose of
+                leaveShared(s);
+            }
+        }
+    }
+
+    /*
+     * Returns the record of a checked out engine of a pool of
+     * thread-isolated engines.
+     */
+    private Shared owned(ScriptEngine eng) {
+        Shared s = sharedEngines.get(eng);
+        if (s == null || s.users.get() <= 0) {
+            throw notCheckedOut(eng);
+        }
+        return s;
+    }
+
+    private static IllegalArgumentException notCheckedOut(ScriptEngine eng) {
+        return new IllegalArgumentException("engine not checked out of this pool: " + eng);
+    }
+
+    private void leaveShared(Shared s) {
+        if (s.leave()) {
+            sharedEngines.remove(s.engine);
+            dispose(s.engine);
+        }
+    }
+
+    private void push(ScriptEngine eng) {
+        if (fair) {
+            queue.offer(eng);
+            return;
+        }
+        Node node = new Node(eng);
+        do {
+            node.next = stack.get();
+        } while (!stack.compareAndSet(node.next, node));
+    }
+
+    private ScriptEngine pop() {
+        Node top;
+        do {
+            top = stack.get();
+            if (top == null) {
+                return null;
+            }
+        } while (!stack.compareAndSet(top, top.next));
+        return top.engine;
+    }
+
+    private interface Waiter {
+        /* Hands over an engine; returns false if the request was cancelled. */
+        boolean offer(ScriptEngine eng);
+
+        void fail(RuntimeException e);
+
+        boolean isDone();
+
+        /* System.nanoTime() when the request was made */
+        long queued();
+    }
+
+    /*
+     * Future of an asynchronous checkout, completed by whichever thread
+     * hands it an engine.
+     */
+    private static final class EngineFuture implements Future<ScriptEngine>, Waiter {
+        private static final int PENDING = 0;
+        private static final int DONE = 1;
+        private static final int FAILED = 2;
+        private static final int CANCELLED = 3;
+
+        private final long queued = System.nanoTime();
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private final CountDownLatch settled = new CountDownLatch(1);
+        // written before the state changes, read after it has
+        private ScriptEngine engine;
+        private RuntimeException failure;
+
+        public long queued() {
+            return queued;
+        }
+
+        public boolean offer(ScriptEngine eng) {
+            engine = eng;
+            if (!state.compareAndSet(PENDING, DONE)) {
+                engine = null;
+                return false;
+            }
+            settled.countDown();
+            return true;
+        }
+
+        public void fail(RuntimeException e) {
+            failure = e;
+            if (state.compareAndSet(PENDING, FAILED)) {
+                settled.countDown();
+            }
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (!state.compareAndSet(PENDING, CANCELLED)) {
+                return false;
+            }
+            settled.countDown();
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        public boolean isDone() {
+            return state.get() != PENDING;
+        }
+
+        public ScriptEngine get() throws InterruptedException, ExecutionException {
+            settled.await();
+            return report();
+        }
+
+        public ScriptEngine get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+            if (!settled.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return report();
+        }
+
+        private ScriptEngine report() throws ExecutionException {
+            switch (state.get()) {
+            case DONE:
+                return engine;
+            case FAILED:
+                throw new ExecutionException(failure);
+            default:
+                throw new CancellationException();
+            }
+        }
+    }
+
+    /*
+     * Future of a task run with an engine. Whoever takes the engine out of
+     * held, the task when it starts or a cancellation before that, checks
+     * it in.
+     */
+    private final class TaskFuture<T> extends FutureTask<T> implements Waiter {
+        private final Call<T> call;
+        private final Executor executor;
+        private final long queued = System.nanoTime();
+        private final AtomicReference<ScriptEngine> held =
+                new AtomicReference<ScriptEngine>();
+
+        TaskFuture(EngineTask<T> task, Executor executor) {
+            this(new Call<T>(task), executor);
+        }
+
+        private TaskFuture(Call<T> call, Executor executor) {
+            super(call);
+            this.call = call;
+            this.executor = executor;
+        }
+
+        public boolean offer(ScriptEngine eng) {
+            held.set(eng);
+            scheduled.add(this);
+            if (!isCancelled()) {
+                try {
+                    executor.execute(this);
+                    return true;
+                } catch (RejectedExecutionException e) {
+                    setException(e);
+                }
+            }
+            // unless a cancellation has taken the engine already
+            if (held.compareAndSet(eng, null)) {
+                scheduled.remove(this);
+                return false;
+            }
+            return true;
+        }
+
+        public void fail(RuntimeException e) {
+            setException(e);
+        }
+
+        public long queued() {
+            return queued;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (!super.cancel(mayInterruptIfRunning)) {
+                return false;
+            }
+            ScriptEngine eng = held.getAndSet(null);
+            if (eng != null) {
+                scheduled.remove(this);
+                checkIn(eng);
+            }
+            return true;
+        }
+
+        /* True if the executor has stopped without running the task. */
+        boolean isDropped() {
+            return executor instanceof ExecutorService
+                    && ((ExecutorService) executor).isTerminated()
+                    && held.get() != null;
+        }
+
+        public void run() {
+            ScriptEngine eng = held.getAndSet(null);
+            if (eng == null) {
+                return;
+            }
+            scheduled.remove(this);
+            call.engine = eng;
+            try {
+                super.run();
+            } finally {
+                checkIn(eng);
+            }
+        }
+    }
+
+    private static final class Call<T> implements Callable<T> {
+        final EngineTask<T> task;
+        ScriptEngine engine;
+
+        Call(EngineTask<T> task) {
+            this.task = task;
+        }
+
+        public T call() throws Exception {
+            return task.run(engine);
+        }
+    }
+
+    private final class Lifetime {
+        final long created;
+        // only touched by the thread that has the engine checked out
+        int uses;
+        volatile boolean replacing;
+        volatile ScriptEngine replacement;
+
+        Lifetime(long created) {
+            this.created = created;
+        }
+
+        boolean isDue(int uses) {
+            return (maxUses > 0 && uses >= maxUses)
+                    || (maxAge > 0 && System.nanoTime() - created >= maxAge);
+        }
+    }
+
+    /*
+     * The engine of a pool of thread-isolated engines with the number of
+     * threads using it, -1 once it is to be disposed of.
+     */
+    private static final class Shared {
+        final ScriptEngine engine;
+        final AtomicInteger users = new AtomicInteger();
+        volatile boolean dropped;
+
+        Shared(ScriptEngine engine) {
+            this.engine = engine;
+        }
+
+        /* Counts a user; returns false if the engine has been discarded. */
+        boolean enter() {
+            int n;
+            do {
+                n = users.get();
+                if (n < 0 || dropped) {
+                    return false;
+                }
+            } while (!users.compareAndSet(n, n + 1));
+            return true;
+        }
+
+        /* Counts a user off; returns true if the engine is to be disposed of. */
+        boolean leave() {
+            return users.decrementAndGet() == 0 && dropped
+                    && users.compareAndSet(0, -1);
+        }
+    }
+
+    private static final class Binding {
+        final Thread owner;
+        // changed only by whoever has the engine checked out
+        volatile ScriptEngine engine;
+        // set by the owner on checkout, cleared by whoever checks it in
+        volatile boolean busy = true;
+        volatile boolean unbound;
+
+        Binding(Thread owner, ScriptEngine engine) {
+            this.owner = owner;
+            this.engine = engine;
+        }
+    }
+
+    private static final class Node {
+        final ScriptEngine engine;
+        Node next;
+
+        Node(ScriptEngine engine) {
+            this.engine = engine;
+        }
+    }
+}
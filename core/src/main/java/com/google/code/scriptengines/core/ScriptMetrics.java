@@ -0,0 +1,48 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.core;
+
+/**
+ * Receives events from engine pools and script caches, for instance to
+ * feed a monitoring system. Methods are called on the thread that caused
+ * the event, often on a hot path, so they must be quick and thread safe.
+ */
+public interface ScriptMetrics {
+
+    /**
+     * A pool created an engine, which took the given time including
+     * warm-up.
+     */
+    void engineCreated(long nanos);
+
+    /**
+     * An engine was checked out after waiting the given time for it.
+     */
+    void engineCheckedOut(long waitNanos);
+
+    void engineCheckedIn();
+
+    /**
+     * An engine was taken out of service, because it was retired or
+     * discarded.
+     */
+    void engineRetired();
+
+    void cacheHit();
+
+    void cacheMiss();
+}
@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.core;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bindings whose values for the names of a {@link SlotLayout} live in an
+ * array, one slot per name, which may belong to the caller; see
+ * {@link PreparedScript}. A slot holding null has no entry, which keeps
+ * slots free of markers. Other names, and layout names bound to null,
+ * are kept in a separate map created on first use.
+ * <p>
+ * Not thread safe, like <code>SimpleBindings</code>.
+ */
+public class SlotBindings extends BindingsBase {
+
+    private final SlotLayout layout;
+    private final Object[] slots;
+    private HashBindings others;
+    private Set<Map.Entry<String, Object>> entrySet;
+
+    public SlotBindings(SlotLayout layout) {
+        this(layout, new Object[layout.size()]);
+    }
+
+    public SlotBindings(SlotLayout layout, Object[] slots) {
+        if (slots.length != layout.size()) {
+            throw new IllegalArgumentException("expected " + layout.size()
+                    + " slots, got " + slots.length);
+        }
+        this.layout = layout;
+        this.slots = slots;
+    }
+
+    public SlotLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * Returns the slots themselves; changes to the array are changes to
+     * the bindings.
+     */
+    public Object[] getSlots() {
+        return slots;
+    }
+
+    /**
+     * Returns the value of the key, or <code>defaultValue</code> if there
+     * is no entry for it.
+     */
+    public Object getOrDefault(Object key, Object defaultValue) {
+        checkKey(key);
+        int slot = layout.indexOf((String) key);
+        if (slot >= 0 && slots[slot] != null) {
+            return slots[slot];
+        }
+        return others == null ? defaultValue : others.getOrDefault(key, defaultValue);
+    }
+
+    public boolean containsKey(Object key) {
+        checkKey(key);
+        int slot = layout.indexOf((String) key);
+        if (slot >= 0 && slots[slot] != null) {
+            return true;
+        }
+        return others != null && others.containsKey(key);
+    }
+
+    public int size() {
+        int ret = others == null ? 0 : others.size();
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] != null) {
+                ret++;
+            }
+        }
+        return ret;
+    }
+
+    public void clear() {
+        Arrays.fill(slots, null);
+        others = null;
+    }
+
+    public Set<Map.Entry<String, Object>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new BindingsEntrySet(this);
+        }
+        return entrySet;
+    }
+
+    //BindingsBase methods
+    public Object getImpl(String name) {
+        int slot = layout.indexOf(name);
+        if (slot >= 0 && slots[slot] != null) {
+            return slots[slot];
+        }
+        return others == null ? null : others.get(name);
+    }
+
+    public Object putImpl(String name, Object value) {
+        int slot = layout.indexOf(name);
+        if (slot < 0) {
+            return others().put(name, value);
+        }
+        Object old = slots[slot];
+        if (value == null) {
+            slots[slot] = null;
+            others().put(name, null);
+        } else {
+            slots[slot] = value;
+            if (old == null && others != null) {
+                old = others.remove(name);
+            }
+        }
+        return old;
+    }
+
+    public Object removeImpl(String name) {
+        Object old = null;
+        int slot = layout.indexOf(name);
+        if (slot >= 0) {
+            old = slots[slot];
+            slots[slot] = null;
+        }
+        if (old == null && others != null) {
+            old = others.remove(name);
+        }
+        return old;
+    }
+
+    public String[] getNames() {
+        String[] ret = new String[size()];
+        int n = 0;
+        Cursor cursor = cursor();
+        while (cursor.next()) {
+            ret[n++] = cursor.getKey();
+        }
+        return ret;
+    }
+
+    protected Cursor cursor() {
+        return new SlotCursor();
+    }
+
+    private HashBindings others() {
+        if (others == null) {
+            others = new HashBindings();
+        }
+        return others;
+    }
+
+    /*
+     * Set slots, then the other entries.
+     */
+    private final class SlotCursor extends Cursor {
+        private final Cursor rest = others == null ? null : others.cursor();
+        private int index = -1;
+        private boolean inSlots = true;
+
+        public boolean next() {
+            if (inSlots) {
+                while (++index < slots.length) {
+                    if (slots[index] != null) {
+                        return true;
+                    }
+                }
+                inSlots = false;
+            }
+            return rest != null && rest.next();
+        }
+
+        public String getKey() {
+            return inSlots ? layout.getName(index) : rest.getKey();
+        }
+
+        public Object getValue() {
+            return inSlots ? slots[index] : rest.getValue();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.core;
+
+/**
+ * Fixed list of variable names, each given the index of a slot, as
+ * returned by {@link PreparedScript#getVariableNames}. Finding the slot of
+ * a name takes a hash probe that usually ends with an identity check,
+ * since names are interned. Layouts are immutable and may be shared.
+ */
+public final class SlotLayout {
+
+    private final String[] names;
+    // slot of the name with the given hash at each position, -1 if empty
+    private final int[] hashes;
+    private final int[] slots;
+
+    public SlotLayout(String[] names) {
+        this.names = new String[names.length];
+        int capacity = 4;
+        while (capacity < 2 * names.length) {
+            capacity <<= 1;
+        }
+        hashes = new int[capacity];
+        slots = new int[capacity];
+        int mask = capacity - 1;
+        for (int n = 0; n < names.length; n++) {
+            String name = names[n];
+            if (name == null) {
+                throw new NullPointerException("null name");
+            }
+            if (name.length() == 0) {
+                throw new IllegalArgumentException("empty name");
+            }
+            name = name.intern();
+            int h = HashBindings.hash(name);
+            int i = h & mask;
+            for (; hashes[i] != 0; i = (i + 1) & mask) {
+                if (this.names[slots[i]] == name) {
+                    throw new IllegalArgumentException("duplicate name: " + name);
+                }
+            }
+            hashes[i] = h;
+            slots[i] = n;
+            this.names[n] = name;
+        }
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public String getName(int slot) {
+        return names[slot];
+    }
+
+    public String[] getNames() {
+        return names.clone();
+    }
+
+    /**
+     * Returns the slot of the name, or -1 if the layout does not have it.
+     */
+    public int indexOf(String name) {
+        int mask = hashes.length - 1;
+        int h = HashBindings.hash(name);
+        for (int i = h & mask;; i = (i + 1) & mask) {
+            int stored = hashes[i];
+            if (stored == 0) {
+                return -1;
+            }
+            if (stored == h) {
+                String n = names[slots[i]];
+                if (n == name || n.equals(name)) {
+                    return slots[i];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.core;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs the differential tests against bindings that implement only the
+ * abstract methods of {@link BindingsBase}, which exercises its default
+ * cursor, size and clear.
+ */
+public class BindingsEntrySetTest extends BindingsTestCase {
+
+    protected Map<String, Object> create(Map<String, Object> contents) {
+        SimpleBindingsBase bindings = new SimpleBindingsBase();
+        bindings.putAll(contents);
+        return bindings;
+    }
+
+    private static class SimpleBindingsBase extends BindingsBase {
+
+        private final Map<String, Object> map = new HashMap<String, Object>();
+
+        public Object putImpl(String name, Object value) {
+            return map.put(name, value);
+        }
+
+        public Object getImpl(String name) {
+            return map.get(name);
+        }
+
+        public Object removeImpl(String name) {
+            return map.remove(name);
+        }
+
+        public String[] getNames() {
+            return map.keySet().toArray(new String[map.size()]);
+        }
+
+        public boolean containsKey(Object key) {
+            checkKey(key);
+            return map.containsKey(key);
+        }
+
+        public Set<Map.Entry<String, Object>> entrySet() {
+            return new BindingsEntrySet(this);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.script.Bindings;
+import javax.script.SimpleBindings;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the entries of {@link BindingsImpl} are those its get
+ * method finds in its local bindings, its store and its global bindings.
+ */
+public class BindingsImplTest extends TestCase {
+
+    private MapBindingsImpl bindings;
+
+    protected void setUp() {
+        bindings = new MapBindingsImpl();
+        bindings.put("own", "own");
+        bindings.put("ownOverLocalNull", "own");
+        bindings.put("ownOverGlobal", "own");
+        bindings.put("localOverOwn", "own");
+        bindings.put("ownNull", null);
+
+        HashBindings local = new HashBindings();
+        local.put("local", "local");
+        local.put("localOverOwn", "local");
+        local.put("localOverGlobal", "local");
+        local.put("ownOverLocalNull", null);
+        bindings.setLocal(local);
+
+        // not a BindingsBase, so walked through its entry set
+        SimpleBindings global = new SimpleBindings();
+        global.put("global", "global");
+        global.put("ownOverGlobal", "global");
+        global.put("localOverGlobal", "global");
+        global.put("ownNull", "global");
+        global.put("globalNull", null);
+        bindings.setGlobal(global);
+    }
+
+    public void testEntriesMatchGet() {
+        Map<String, Object> expected = new HashMap<String, Object>();
+        for (String name : new String[] { "own", "ownOverLocalNull", "ownOverGlobal",
+                "localOverOwn", "ownNull", "local", "localOverGlobal", "global",
+                "globalNull", "missing" }) {
+            Object value = bindings.get(name);
+            if (value != null) {
+                expected.put(name, value);
+            }
+        }
+        assertEquals(8, expected.size());
+        assertEquals("global", expected.get("ownNull"));
+        assertEquals("local", expected.get("localOverOwn"));
+
+        final List<String> seen = new ArrayList<String>();
+        final Map<String, Object> visited = new HashMap<String, Object>();
+        bindings.forEach(new BindingsVisitor() {
+            public void visit(String name, Object value) {
+                seen.add(name);
+                visited.put(name, value);
+            }
+        });
+        assertEquals(expected, visited);
+        assertEquals("each name once", expected.size(), seen.size());
+        assertEquals(expected, new HashMap<String, Object>(bindings));
+        assertEquals(expected.size(), bindings.size());
+        assertFalse(bindings.isEmpty());
+    }
+
+    public void testEmpty() {
+        MapBindingsImpl empty = new MapBindingsImpl();
+        assertTrue(empty.isEmpty());
+        assertEquals(0, empty.size());
+        assertFalse(empty.entrySet().iterator().hasNext());
+        empty.setLocal(new HashBindings());
+        empty.setGlobal(new SimpleBindings());
+        assertTrue(empty.isEmpty());
+        empty.getGlobal().put("g", null);
+        assertTrue(empty.isEmpty());
+    }
+
+    private static class MapBindingsImpl extends BindingsImpl {
+
+        private final Map<String, Object> map = new HashMap<String, Object>();
+
+        public Object putImpl(String name, Object value) {
+            return map.put(name, value);
+        }
+
+        public Object getImpl(String name) {
+            return map.get(name);
+        }
+
+        public Object removeImpl(String name) {
+            return map.remove(name);
+        }
+
+        public String[] getNames() {
+            return map.keySet().toArray(new String[map.size()]);
+        }
+
+        Bindings getGlobal() {
+            return global;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs the same operations on a Bindings implementation and on a
+ * <code>HashMap</code> and checks that both always hold the same
+ * entries. Half of the keys share their hash code with other keys, so
+ * that collisions are exercised as much as the common case.
+ */
+public abstract class BindingsTestCase extends TestCase {
+
+    // "Aa" and "BB" have the same hash code, so all strings of the same
+    // number of them do too
+    private static final String[] KEYS = keys();
+
+    private final Random random = new Random(42);
+
+    /**
+     * Returns bindings holding the given entries.
+     */
+    protected abstract Map<String, Object> create(Map<String, Object> contents);
+
+    /**
+     * Whether the bindings made by {@link #create} can be changed.
+     */
+    protected boolean isMutable() {
+        return true;
+    }
+
+    private static String[] keys() {
+        List<String> keys = new ArrayList<String>();
+        for (int n = 1; n <= 4; n++) {
+            for (int bits = 0; bits < 1 << n; bits++) {
+                StringBuilder key = new StringBuilder();
+                for (int i = 0; i < n; i++) {
+                    key.append((bits & 1 << i) == 0 ? "Aa" : "BB");
+                }
+                keys.add(key.toString());
+            }
+        }
+        for (int i = keys.size(); i > 0; i--) {
+            keys.add("key" + i);
+        }
+        return keys.toArray(new String[keys.size()]);
+    }
+
+    protected String randomKey() {
+        return KEYS[random.nextInt(KEYS.length)];
+    }
+
+    protected Map<String, Object> randomContents() {
+        Map<String, Object> contents = new HashMap<String, Object>();
+        int size = random.nextInt(KEYS.length);
+        for (int i = 0; i < size; i++) {
+            contents.put(randomKey(), randomValue());
+        }
+        return contents;
+    }
+
+    private Object randomValue() {
+        int value = random.nextInt(100);
+        return value == 0 ? null : Integer.valueOf(value);
+    }
+
+    protected void assertSameEntries(Map<String, Object> expected, Map<String, Object> actual) {
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.isEmpty(), actual.isEmpty());
+        assertEquals(expected, actual);
+        assertEquals(actual, expected);
+        assertEquals(expected.hashCode(), actual.hashCode());
+        assertEquals(expected.keySet(), actual.keySet());
+        for (String key : KEYS) {
+            assertEquals(key, expected.containsKey(key), actual.containsKey(key));
+            assertEquals(key, expected.get(key), actual.get(key));
+        }
+        int count = 0;
+        for (Map.Entry<String, Object> entry : actual.entrySet()) {
+            assertTrue(entry.toString(), expected.containsKey(entry.getKey()));
+            assertEquals(expected.get(entry.getKey()), entry.getValue());
+            count++;
+        }
+        assertEquals(expected.size(), count);
+    }
+
+    public void testRandomOperations() {
+        for (int round = 0; round < 50; round++) {
+            Map<String, Object> expected = randomContents();
+            Map<String, Object> actual = create(new HashMap<String, Object>(expected));
+            assertSameEntries(expected, actual);
+            if (!isMutable()) {
+                continue;
+            }
+            for (int step = 0; step < 200; step++) {
+                String key = randomKey();
+                switch (random.nextInt(10)) {
+                case 0:
+                case 1:
+                case 2:
+                    Object value = randomValue();
+                    assertEquals(expected.put(key, value), actual.put(key, value));
+                    break;
+                case 3:
+                case 4:
+                    assertEquals(expected.remove(key), actual.remove(key));
+                    break;
+                case 5:
+                    assertEquals(expected.keySet().remove(key), actual.keySet().remove(key));
+                    break;
+                case 6:
+                    Map<String, Object> more = randomContents();
+                    expected.putAll(more);
+                    actual.putAll(more);
+                    break;
+                case 7:
+                    removeSome(expected, actual);
+                    break;
+                case 8:
+                    setSome(expected, actual);
+                    break;
+                default:
+                    if (random.nextInt(10) == 0) {
+                        expected.clear();
+                        actual.clear();
+                    }
+                    break;
+                }
+                assertSameEntries(expected, actual);
+            }
+        }
+    }
+
+    // removes entries chosen at random through the entry set iterator
+    private void removeSome(Map<String, Object> expected, Map<String, Object> actual) {
+        for (Iterator<Map.Entry<String, Object>> it = actual.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Object> entry = it.next();
+            if (random.nextBoolean()) {
+                it.remove();
+                expected.remove(entry.getKey());
+            }
+        }
+    }
+
+    // replaces values chosen at random through the entries
+    private void setSome(Map<String, Object> expected, Map<String, Object> actual) {
+        for (Map.Entry<String, Object> entry : actual.entrySet()) {
+            if (random.nextBoolean()) {
+                Object value = randomValue();
+                assertEquals(expected.put(entry.getKey(), value), entry.setValue(value));
+                assertEquals(value, entry.getValue());
+            }
+        }
+    }
+
+    public void testCollidingKeys() {
+        Map<String, Object> expected = new HashMap<String, Object>();
+        for (String key : KEYS) {
+            if (key.hashCode() == "AaAaAa".hashCode()) {
+                expected.put(key, key);
+            }
+        }
+        assertEquals(8, expected.size());
+        Map<String, Object> actual = create(new HashMap<String, Object>(expected));
+        assertSameEntries(expected, actual);
+        if (isMutable()) {
+            assertEquals("AaBBAa", actual.remove("AaBBAa"));
+            expected.remove("AaBBAa");
+            assertSameEntries(expected, actual);
+            assertNull(actual.put("AaBBAa", "again"));
+            expected.put("AaBBAa", "again");
+            assertSameEntries(expected, actual);
+        }
+    }
+
+    public void testIteratorRemoveAll() {
+        if (!isMutable()) {
+            return;
+        }
+        Map<String, Object> actual = create(randomContents());
+        for (Iterator<Map.Entry<String, Object>> it = actual.entrySet().iterator(); it.hasNext();) {
+            it.next();
+            it.remove();
+        }
+        assertSameEntries(new HashMap<String, Object>(), actual);
+    }
+
+    public void testIteratorRemoveBeforeNext() {
+        if (!isMutable()) {
+            return;
+        }
+        Iterator<Map.Entry<String, Object>> it = create(randomContents()).entrySet().iterator();
+        try {
+            it.remove();
+            fail("remove before next");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    public void testInvalidKeys() {
+        Map<String, Object> actual = create(randomContents());
+        try {
+            actual.get(null);
+            fail("null key");
+        } catch (NullPointerException expected) {
+        }
+        try {
+            actual.get("");
+            fail("empty key");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            actual.get(Integer.valueOf(1));
+            fail("key that is not a String");
+        } catch (ClassCastException expected) {
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.core;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+public class FrozenBindingsTest extends BindingsTestCase {
+
+    protected Map<String, Object> create(Map<String, Object> contents) {
+        return new FrozenBindings(contents);
+    }
+
+    protected boolean isMutable() {
+        return false;
+    }
+
+    public void testLarge() {
+        Map<String, Object> contents = new HashMap<String, Object>();
+        for (int i = 0; i < 10000; i++) {
+            contents.put("k" + i, Integer.valueOf(i));
+        }
+        assertSameEntries(contents, create(contents));
+    }
+
+    public void testEmpty() {
+        assertSameEntries(new HashMap<String, Object>(), create(new HashMap<String, Object>()));
+    }
+
+    public void testFreeze() {
+        FrozenBindings bindings = FrozenBindings.freeze(randomContents());
+        assertSame(bindings, FrozenBindings.freeze(bindings));
+    }
+
+    public void testUnmodifiable() {
+        Map<String, Object> contents = randomContents();
+        contents.put("AaBB", "x");
+        Map<String, Object> bindings = create(contents);
+        try {
+            bindings.put("AaBB", "y");
+            fail("put");
+        } catch (UnsupportedOperationException expected) {
+        }
+        try {
+            bindings.remove("AaBB");
+            fail("remove");
+        } catch (UnsupportedOperationException expected) {
+        }
+        try {
+            bindings.clear();
+            fail("clear");
+        } catch (UnsupportedOperationException expected) {
+        }
+        try {
+            bindings.entrySet().iterator().next().setValue("y");
+            fail("setValue");
+        } catch (UnsupportedOperationException expected) {
+        }
+        Iterator<Map.Entry<String, Object>> it = bindings.entrySet().iterator();
+        it.next();
+        try {
+            it.remove();
+            fail("iterator remove");
+        } catch (UnsupportedOperationException expected) {
+        }
+        assertSameEntries(contents, bindings);
+    }
+}
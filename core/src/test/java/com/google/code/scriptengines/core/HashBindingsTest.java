@@ -0,0 +1,54 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.core;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class HashBindingsTest extends BindingsTestCase {
+
+    protected Map<String, Object> create(Map<String, Object> contents) {
+        return new HashBindings(contents);
+    }
+
+    public void testConcurrent() {
+        Map<String, Object> contents = randomContents();
+        HashBindings bindings = new HashBindings(0, true);
+        assertTrue(bindings.isConcurrent());
+        bindings.putAll(contents);
+        assertSameEntries(contents, bindings);
+    }
+
+    public void testGrowsFromEmpty() {
+        HashBindings bindings = new HashBindings(0);
+        Map<String, Object> expected = new HashMap<String, Object>();
+        for (int i = 0; i < 1000; i++) {
+            bindings.put("k" + i, Integer.valueOf(i));
+            expected.put("k" + i, Integer.valueOf(i));
+        }
+        assertEquals(expected, bindings);
+        assertEquals(bindings, expected);
+    }
+
+    public void testNegativeSize() {
+        try {
+            new HashBindings(-1);
+            fail("negative size");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
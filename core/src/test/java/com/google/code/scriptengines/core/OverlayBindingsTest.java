@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.core;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class OverlayBindingsTest extends BindingsTestCase {
+
+    /*
+     * The base holds some of the entries, some with other values, and
+     * some keys the bindings must not have, so that the overlay shadows,
+     * hides and adds to it.
+     */
+    protected Map<String, Object> create(Map<String, Object> contents) {
+        Map<String, Object> base = randomContents();
+        OverlayBindings bindings = new OverlayBindings(base);
+        for (String key : base.keySet()) {
+            if (!contents.containsKey(key)) {
+                bindings.remove(key);
+            }
+        }
+        bindings.putAll(contents);
+        return bindings;
+    }
+
+    public void testBaseUnchanged() {
+        Map<String, Object> base = randomContents();
+        Map<String, Object> copy = new HashMap<String, Object>(base);
+        OverlayBindings bindings = new OverlayBindings(base);
+        bindings.put(randomKey(), "changed");
+        bindings.remove(randomKey());
+        for (Map.Entry<String, Object> entry : bindings.entrySet()) {
+            entry.setValue("set");
+        }
+        bindings.clear();
+        assertTrue(bindings.isEmpty());
+        assertEquals(copy, base);
+        assertSameEntries(copy, new OverlayBindings(base));
+    }
+
+    public void testNullBase() {
+        try {
+            new OverlayBindings(null);
+            fail("null base");
+        } catch (NullPointerException expected) {
+        }
+    }
+}
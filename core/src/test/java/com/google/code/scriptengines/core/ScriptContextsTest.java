@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.core;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.script.ScriptContext;
+import javax.script.SimpleBindings;
+import javax.script.SimpleScriptContext;
+
+import junit.framework.TestCase;
+
+public class ScriptContextsTest extends TestCase {
+
+    private static final Object ABSENT = new Object();
+
+    private ScriptContext context;
+
+    protected void setUp() {
+        Map<String, Object> globals = new HashMap<String, Object>();
+        globals.put("g", "global");
+        globals.put("shadowed", "global");
+        context = new SimpleScriptContext();
+        context.setBindings(FrozenBindings.freeze(globals), ScriptContext.GLOBAL_SCOPE);
+        context.setAttribute("e", "engine", ScriptContext.ENGINE_SCOPE);
+        context.setAttribute("shadowed", "engine", ScriptContext.ENGINE_SCOPE);
+    }
+
+    public void testLockedLookupMatchesPlainLookup() {
+        Lock lock = new ReentrantLock();
+        for (String name : new String[] { "g", "e", "shadowed", "missing" }) {
+            assertSame(ScriptContexts.getAttribute(context, name, ABSENT),
+                       ScriptContexts.getAttribute(context, name, ABSENT, lock));
+        }
+        context.setBindings(new SimpleBindings(), ScriptContext.GLOBAL_SCOPE);
+        assertSame(ABSENT, ScriptContexts.getAttribute(context, "g", ABSENT, lock));
+        assertEquals("engine", ScriptContexts.getAttribute(context, "e", ABSENT, lock));
+    }
+
+    public void testFrozenScopeIsReadWithoutLock() throws Exception {
+        Map<String, Object> engine = new HashMap<String, Object>();
+        engine.put("e", "engine");
+        context.setBindings(FrozenBindings.freeze(engine), ScriptContext.ENGINE_SCOPE);
+        final ReentrantLock lock = new ReentrantLock();
+        lock.lock();
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        try {
+            assertEquals("engine", exec.submit(new Callable<Object>() {
+                public Object call() {
+                    return ScriptContexts.getAttribute(context, "e", ABSENT, lock);
+                }
+            }).get(5, TimeUnit.SECONDS));
+            assertEquals("global", exec.submit(new Callable<Object>() {
+                public Object call() {
+                    return ScriptContexts.getAttribute(context, "g", ABSENT, lock);
+                }
+            }).get(5, TimeUnit.SECONDS));
+        } finally {
+            lock.unlock();
+            exec.shutdown();
+        }
+    }
+}
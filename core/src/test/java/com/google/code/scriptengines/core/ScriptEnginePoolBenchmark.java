@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.core;
+
+import java.io.Reader;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.SimpleBindings;
+
+/**
+ * Measures checkouts and check-ins per second of {@link ScriptEnginePool},
+ * unfair and fair, against the pool it replaced, which synchronized on
+ * itself around a list. Each thread checks an engine out and straight
+ * back in, so the figures are the cost of the pool alone. Run with
+ * <code>java ScriptEnginePoolBenchmark [capacity [millis]]</code>; not
+ * run by the build.
+ */
+public class ScriptEnginePoolBenchmark {
+
+    private static final int[] THREADS = { 1, 8, 32, 64 };
+
+    private static volatile long sink;
+
+    public static void main(String[] args) throws Exception {
+        int capacity = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        long millis = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+        for (int threads : THREADS) {
+            double old = 0;
+            double unfair = 0;
+            double fair = 0;
+            // the first round warms up
+            for (int round = 0; round < 2; round++) {
+                final SynchronizedPool op = new SynchronizedPool(new Factory(), capacity);
+                final ScriptEnginePool np = new ScriptEnginePool(new Factory(), capacity);
+                final ScriptEnginePool fp = new ScriptEnginePool(new Factory(), capacity, true);
+                old = run(new Pool() {
+                    public ScriptEngine checkOut() throws InterruptedException {
+                        return op.checkOut();
+                    }
+                    public void checkIn(ScriptEngine eng) {
+                        op.checkIn(eng);
+                    }
+                }, threads, millis);
+                unfair = run(wrap(np), threads, millis);
+                fair = run(wrap(fp), threads, millis);
+            }
+            System.out.printf("threads=%d synchronized=%.1fM/s unfair=%.1fM/s fair=%.1fM/s%n",
+                    threads, old / 1e6, unfair / 1e6, fair / 1e6);
+        }
+    }
+
+    private static Pool wrap(final ScriptEnginePool pool) {
+        return new Pool() {
+            public ScriptEngine checkOut() throws InterruptedException {
+                return pool.checkOut();
+            }
+            public void checkIn(ScriptEngine eng) {
+                pool.checkIn(eng);
+            }
+        };
+    }
+
+    /*
+     * Returns the operations per second of the given number of threads
+     * checking engines out and in for the given time.
+     */
+    private static double run(final Pool pool, int threads, long millis)
+    throws InterruptedException {
+        final AtomicLong ops = new AtomicLong();
+        final long end = System.nanoTime() + millis * 1000000L;
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread() {
+                public void run() {
+                    long n = 0;
+                    long x = 0;
+                    try {
+                        while (System.nanoTime() < end) {
+                            for (int k = 0; k < 100; k++) {
+                                ScriptEngine eng = pool.checkOut();
+                                x += eng.hashCode();
+                                pool.checkIn(eng);
+                                n++;
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    ops.addAndGet(n);
+                    sink += x;
+                }
+            };
+            workers[i].start();
+        }
+        for (Thread t : workers) {
+            t.join();
+        }
+        return ops.get() / (millis / 1000.0);
+    }
+
+    private interface Pool {
+        ScriptEngine checkOut() throws InterruptedException;
+
+        void checkIn(ScriptEngine eng);
+    }
+
+    /*
+     * The pool as it was before it was made lock-free.
+     */
+    private static final class SynchronizedPool {
+        private final int capacity;
+        private final ScriptEngineFactory fact;
+        private final LinkedList<ScriptEngine> pool = new LinkedList<ScriptEngine>();
+        private int size;
+
+        SynchronizedPool(ScriptEngineFactory fact, int capacity) {
+            this.fact = fact;
+            this.capacity = capacity;
+        }
+
+        synchronized ScriptEngine checkOut() throws InterruptedException {
+            if (pool.size() > 0) {
+                return pool.removeFirst();
+            }
+            if (size < capacity) {
+                size++;
+                return fact.getScriptEngine();
+            }
+            while (pool.size() == 0) {
+                wait();
+            }
+            return pool.removeFirst();
+        }
+
+        synchronized void checkIn(ScriptEngine eng) {
+            pool.addLast(eng);
+            notify();
+        }
+    }
+
+    private static final class Factory implements ScriptEngineFactory {
+        public String getEngineName() {
+            return "benchmark";
+        }
+
+        public String getEngineVersion() {
+            return "";
+        }
+
+        public List<String> getExtensions() {
+            return null;
+        }
+
+        public List<String> getMimeTypes() {
+            return null;
+        }
+
+        public List<String> getNames() {
+            return null;
+        }
+
+        public String getLanguageName() {
+            return "";
+        }
+
+        public String getLanguageVersion() {
+            return "";
+        }
+
+        public Object getParameter(String key) {
+            return "THREADING".equals(key) ? "MULTITHREADED" : null;
+        }
+
+        public String getMethodCallSyntax(String obj, String m, String... args) {
+            return null;
+        }
+
+        public String getOutputStatement(String toDisplay) {
+            return null;
+        }
+
+        public String getProgram(String... statements) {
+            return null;
+        }
+
+        public ScriptEngine getScriptEngine() {
+            return new Engine();
+        }
+    }
+
+    private static final class Engine extends AbstractScriptEngine {
+        public Object eval(String script, ScriptContext context) {
+            return null;
+        }
+
+        public Object eval(Reader reader, ScriptContext context) {
+            return null;
+        }
+
+        public Bindings createBindings() {
+            return new SimpleBindings();
+        }
+
+        public ScriptEngineFactory getFactory() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.core;
+
+import java.io.Reader;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.SimpleBindings;
+
+import junit.framework.TestCase;
+
+public class ScriptEnginePoolTest extends TestCase {
+
+    public void testCapacityLimitsCheckouts() throws Exception {
+        ScriptEnginePool pool = new ScriptEnginePool(new Factory("MULTITHREADED"), 2);
+        ScriptEngine a = pool.checkOut();
+        ScriptEngine b = pool.checkOut();
+        assertNotSame(a, b);
+        long start = System.nanoTime();
+        assertNull(pool.checkOut(50, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(40));
+        pool.checkIn(b);
+        assertSame(b, pool.checkOut(0, TimeUnit.MILLISECONDS));
+    }
+
+    public void testTimedCheckOutGetsEngineCheckedInMeanwhile() throws Exception {
+        final ScriptEnginePool pool = new ScriptEnginePool(new Factory("MULTITHREADED"), 1);
+        final ScriptEngine eng = pool.checkOut();
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    // check in all the same
+                }
+                pool.checkIn(eng);
+            }
+        };
+        t.start();
+        assertSame(eng, pool.checkOut(5, TimeUnit.SECONDS));
+        t.join();
+    }
+
+    public void testInterruptedCheckOutTakesNoEngine() throws Exception {
+        final ScriptEnginePool pool = new ScriptEnginePool(new Factory("MULTITHREADED"), 1);
+        ScriptEngine eng = pool.checkOut();
+        final Exception[] thrown = new Exception[1];
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    pool.checkOut();
+                } catch (InterruptedException e) {
+                    thrown[0] = e;
+                }
+            }
+        };
+        t.start();
+        Thread.sleep(50);
+        t.interrupt();
+        t.join(5000);
+        assertTrue(thrown[0] instanceof InterruptedException);
+        pool.checkIn(eng);
+        assertSame(eng, pool.checkOut(0, TimeUnit.MILLISECONDS));
+        assertNull(pool.checkOut(10, TimeUnit.MILLISECONDS));
+    }
+
+    public void testThreadAffinePoolBindsEngineToThread() throws Exception {
+        final ScriptEnginePool pool =
+                new ScriptEnginePool(new Factory("MULTITHREADED"), 3, false, true);
+        ScriptEngine mine = pool.checkOut();
+        pool.checkIn(mine);
+        final ScriptEngine[] other = new ScriptEngine[1];
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    other[0] = pool.checkOut();
+                    pool.checkIn(other[0]);
+                } catch (InterruptedException e) {
+                    // leaves other[0] null
+                }
+            }
+        };
+        t.start();
+        t.join();
+        assertNotNull(other[0]);
+        assertNotSame(mine, other[0]);
+        for (int i = 0; i < 3; i++) {
+            ScriptEngine eng = pool.checkOut();
+            assertSame(mine, eng);
+            pool.checkIn(eng);
+        }
+    }
+
+    public void testEngineOfDeadThreadIsReclaimed() throws Exception {
+        final ScriptEnginePool pool =
+                new ScriptEnginePool(new Factory("MULTITHREADED"), 2, false, true);
+        final ScriptEngine[] dead = new ScriptEngine[1];
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    dead[0] = pool.checkOut();
+                    pool.checkIn(dead[0]);
+                } catch (InterruptedException e) {
+                    // leaves dead[0] null
+                }
+            }
+        };
+        t.start();
+        t.join();
+        assertNotNull(dead[0]);
+        // the thread's engine keeps its permit, so only one is left
+        ScriptEngine eng = pool.checkOut();
+        assertNotSame(dead[0], eng);
+        assertSame(dead[0], pool.checkOut(5, TimeUnit.SECONDS));
+    }
+
+    public void testEngineIsRetiredAfterMaxUses() throws Exception {
+        ScriptEnginePool pool = new ScriptEnginePool(new Factory("MULTITHREADED"), 1);
+        pool.setMaxUses(2);
+        Engine first = (Engine) pool.checkOut();
+        pool.checkIn(first);
+        assertSame(first, pool.checkOut());
+        pool.checkIn(first);
+        assertNotSame(first, awaitReplacement(pool, first));
+        assertTrue(first.awaitDisposed(5000));
+    }
+
+    public void testEngineIsRetiredAfterMaxAge() throws Exception {
+        ScriptEnginePool pool = new ScriptEnginePool(new Factory("MULTITHREADED"), 1);
+        pool.setMaxAge(1, TimeUnit.MILLISECONDS);
+        Engine first = (Engine) pool.checkOut();
+        Thread.sleep(10);
+        pool.checkIn(first);
+        assertNotSame(first, awaitReplacement(pool, first));
+        assertTrue(first.awaitDisposed(5000));
+    }
+
+    public void testDiscardedEngineIsReplaced() throws Exception {
+        ScriptEnginePool pool = new ScriptEnginePool(new Factory("MULTITHREADED"), 1);
+        Engine eng = (Engine) pool.checkOut();
+        pool.discard(eng);
+        assertTrue(eng.awaitDisposed(5000));
+        ScriptEngine next = pool.checkOut(5, TimeUnit.SECONDS);
+        assertNotNull(next);
+        assertNotSame(eng, next);
+        try {
+            pool.checkIn(eng);
+            fail("checked in a discarded engine");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testAsyncCheckOutCompletesOnCheckIn() throws Exception {
+        ScriptEnginePool pool = new ScriptEnginePool(new Factory("MULTITHREADED"), 1);
+        ScriptEngine eng = pool.checkOut();
+        Future<ScriptEngine> f = pool.checkOutAsync();
+        assertFalse(f.isDone());
+        pool.checkIn(eng);
+        assertSame(eng, f.get(5, TimeUnit.SECONDS));
+        pool.checkIn(eng);
+    }
+
+    public void testCancelledAsyncCheckOutGetsNoEngine() throws Exception {
+        ScriptEnginePool pool = new ScriptEnginePool(new Factory("MULTITHREADED"), 1);
+        ScriptEngine eng = pool.checkOut();
+        Future<ScriptEngine> f = pool.checkOutAsync();
+        assertTrue(f.cancel(false));
+        assertTrue(f.isCancelled());
+        pool.checkIn(eng);
+        try {
+            f.get();
+            fail("cancelled checkout returned an engine");
+        } catch (CancellationException expected) {
+        }
+        assertSame(eng, pool.checkOut(0, TimeUnit.MILLISECONDS));
+    }
+
+    public void testEngineOfDroppedTaskIsReclaimed() throws Exception {
+        ScriptEnginePool pool = new ScriptEnginePool(new Factory("MULTITHREADED"), 1);
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        final CountDownLatch blocked = new CountDownLatch(1);
+        exec.execute(new Runnable() {
+            public void run() {
+                try {
+                    new CountDownLatch(1).await();
+                } catch (InterruptedException e) {
+                    blocked.countDown();
+                }
+            }
+        });
+        final boolean[] ran = new boolean[1];
+        Future<Object> f = pool.withEngine(new ScriptEnginePool.EngineTask<Object>() {
+            public Object run(ScriptEngine engine) {
+                ran[0] = true;
+                return null;
+            }
+        }, exec);
+        // the task holds the only engine, queued behind the blocker
+        assertNull(pool.checkOut(10, TimeUnit.MILLISECONDS));
+        assertEquals(1, exec.shutdownNow().size());
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        assertTrue(exec.awaitTermination(5, TimeUnit.SECONDS));
+        assertNotNull(pool.checkOut(5, TimeUnit.SECONDS));
+        assertTrue(f.isCancelled());
+        assertFalse(ran[0]);
+    }
+
+    public void testEngineScopeIsResetOnCheckIn() throws Exception {
+        ScriptEnginePool pool = new ScriptEnginePool(new Factory("MULTITHREADED"), 1);
+        pool.setWarmUp(new ScriptEnginePool.EngineTask<Object>() {
+            public Object run(ScriptEngine engine) {
+                engine.put("warm", "yes");
+                return null;
+            }
+        });
+        pool.setResetOnCheckIn(true);
+        ScriptEngine eng = pool.checkOut();
+        assertEquals("yes", eng.get("warm"));
+        eng.put("warm", "no");
+        eng.put("left", "over");
+        pool.checkIn(eng);
+        assertSame(eng, pool.checkOut());
+        assertEquals("yes", eng.get("warm"));
+        assertNull(eng.get("left"));
+    }
+
+    public void testDiscardKeepsSharedEngineUntilCheckedIn() throws Exception {
+        ScriptEnginePool pool = new ScriptEnginePool(new Factory("THREAD-ISOLATED"));
+        Engine first = (Engine) pool.checkOut();
+        Engine second = (Engine) pool.checkOut();
+        assertSame(first, second);
+        pool.discard(first);
+        Engine fresh = (Engine) pool.checkOut();
+        assertNotSame(first, fresh);
+        pool.shutdown();
+        assertFalse(first.awaitDisposed(100));
+        pool.checkIn(second);
+        assertTrue(first.awaitDisposed(5000));
+        assertFalse(fresh.awaitDisposed(100));
+        pool.checkIn(fresh);
+    }
+
+    public void testCheckInTwiceIsRejected() throws Exception {
+        ScriptEnginePool pool = new ScriptEnginePool(new Factory("MULTITHREADED"), 1);
+        ScriptEngine eng = pool.checkOut();
+        pool.checkIn(eng);
+        try {
+            pool.checkIn(eng);
+            fail("checked in twice");
+        } catch (IllegalArgumentException expected) {
+        }
+        // still only one engine to check out
+        assertSame(eng, pool.checkOut());
+        assertNull(pool.checkOut(10, TimeUnit.MILLISECONDS));
+    }
+
+    public void testForeignEngineIsRejected() throws Exception {
+        ScriptEnginePool pool = new ScriptEnginePool(new Factory("MULTITHREADED"), 1);
+        try {
+            pool.checkIn(new Engine());
+            fail("checked in a foreign engine");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            pool.discard(new Engine());
+            fail("discarded a foreign engine");
+        } catch (IllegalArgumentException expected) {
+        }
+        pool.checkOut();
+        assertNull(pool.checkOut(10, TimeUnit.MILLISECONDS));
+    }
+
+    public void testSharedEngineCheckedInTooOftenIsRejected() throws Exception {
+        ScriptEnginePool pool = new ScriptEnginePool(new Factory("THREAD-ISOLATED"));
+        ScriptEngine eng = pool.checkOut();
+        pool.checkIn(eng);
+        try {
+            pool.checkIn(eng);
+            fail("checked in twice");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            pool.checkIn(new Engine());
+            fail("checked in a foreign engine");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /*
+     * Checks engines out and in until the given one has been replaced.
+     */
+    private static ScriptEngine awaitReplacement(ScriptEnginePool pool, ScriptEngine old)
+    throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        ScriptEngine eng;
+        do {
+            Thread.sleep(1);
+            eng = pool.checkOut();
+            pool.checkIn(eng);
+        } while (eng == old && System.currentTimeMillis() < end);
+        return eng;
+    }
+
+    static final class Factory implements ScriptEngineFactory {
+        private final String threading;
+
+        Factory(String threading) {
+            this.threading = threading;
+        }
+
+        public String getEngineName() {
+            return "test";
+        }
+
+        public String getEngineVersion() {
+            return "";
+        }
+
+        public List<String> getExtensions() {
+            return null;
+        }
+
+        public List<String> getMimeTypes() {
+            return null;
+        }
+
+        public List<String> getNames() {
+            return null;
+        }
+
+        public String getLanguageName() {
+            return "";
+        }
+
+        public String getLanguageVersion() {
+            return "";
+        }
+
+        public Object getParameter(String key) {
+            return "THREADING".equals(key) ? threading : null;
+        }
+
+        public String getMethodCallSyntax(String obj, String m, String... args) {
+            return null;
+        }
+
+        public String getOutputStatement(String toDisplay) {
+            return null;
+        }
+
+        public String getProgram(String... statements) {
+            return null;
+        }
+
+        public ScriptEngine getScriptEngine() {
+            return new Engine();
+        }
+    }
+
+    static final class Engine extends AbstractScriptEngine implements Disposable {
+        private boolean disposed;
+
+        public Object eval(String script, ScriptContext context) {
+            return null;
+        }
+
+        public Object eval(Reader reader, ScriptContext context) {
+            return null;
+        }
+
+        public Bindings createBindings() {
+            return new SimpleBindings();
+        }
+
+        public ScriptEngineFactory getFactory() {
+            return null;
+        }
+
+        public synchronized void dispose() {
+            disposed = true;
+            notifyAll();
+        }
+
+        /* Waits up to the given time for the engine to be disposed of. */
+        synchronized boolean awaitDisposed(long millis) throws InterruptedException {
+            long end = System.currentTimeMillis() + millis;
+            long left = millis;
+            while (!disposed && left > 0) {
+                wait(left);
+                left = end - System.currentTimeMillis();
+            }
+            return disposed;
+        }
+    }
+}
@@ -35,20 +35,34 @@ import javax.script.ScriptException;
 import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
 
-public class GroovyCompiledScript extends CompiledScript {
+import com.google.code.scriptengines.core.PreparedScript;
+import com.google.code.scriptengines.core.SlotBindings;
+import com.google.code.scriptengines.core.SlotLayout;
+
+public class GroovyCompiledScript extends CompiledScript implements PreparedScript {
 
     private GroovyScriptEngine engine;
     private Class clasz;
+    private SlotLayout layout;
 
     public GroovyCompiledScript(GroovyScriptEngine engine, Class clasz) {
         this.engine = engine;
         this.clasz = clasz;
+        this.layout = GroovyScriptEngine.getVariableLayout(clasz);
     }
 
     public Object eval(ScriptContext context) throws ScriptException {
         return engine.eval(clasz, context);
     }
 
+    public String[] getVariableNames() {
+        return layout.getNames();
+    }
+
+    public Object eval(Object[] slots) throws ScriptException {
+        return eval(new SlotBindings(layout, slots));
+    }
+
     public ScriptEngine getEngine() {
         return engine;
     }
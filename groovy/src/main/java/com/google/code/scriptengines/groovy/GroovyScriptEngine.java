@@ -31,16 +31,20 @@
 package com.google.code.scriptengines.groovy;
 
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 import java.util.HashMap;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.io.Reader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.ByteArrayInputStream;
 import java.lang.reflect.Method;
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.Proxy;
+import java.security.CodeSource;
 
 import javax.script.Compilable;
 import javax.script.AbstractScriptEngine;
@@ -48,12 +52,19 @@ import javax.script.Invocable;
 import javax.script.ScriptContext;
 import javax.script.ScriptException;
 import javax.script.Bindings;
-import javax.script.SimpleBindings;
 import javax.script.ScriptEngineFactory;
 import javax.script.CompiledScript;
 
+import org.codehaus.groovy.ast.ClassCodeVisitorSupport;
+import org.codehaus.groovy.ast.ClassNode;
+import org.codehaus.groovy.ast.DynamicVariable;
+import org.codehaus.groovy.ast.expr.VariableExpression;
+import org.codehaus.groovy.classgen.GeneratorContext;
+import org.codehaus.groovy.control.CompilationUnit;
 import org.codehaus.groovy.control.CompilerConfiguration;
 import org.codehaus.groovy.control.CompilationFailedException;
+import org.codehaus.groovy.control.Phases;
+import org.codehaus.groovy.control.SourceUnit;
 import org.codehaus.groovy.syntax.SyntaxException;
 import org.codehaus.groovy.runtime.InvokerHelper;
 import org.codehaus.groovy.runtime.MethodClosure;
@@ -68,16 +79,41 @@ import groovy.lang.Tuple;
 import groovy.lang.MissingMethodException;
 import groovy.lang.Closure;
 
-public class GroovyScriptEngine extends AbstractScriptEngine implements Compilable, Invocable {
+import com.google.code.scriptengines.core.BindingsSnapshot;
+import com.google.code.scriptengines.core.CacheKeys;
+import com.google.code.scriptengines.core.ConcurrentScriptContext;
+import com.google.code.scriptengines.core.HashBindings;
+import com.google.code.scriptengines.core.InterfaceImplementor;
+import com.google.code.scriptengines.core.LruScriptCache;
+import com.google.code.scriptengines.core.Restorable;
+import com.google.code.scriptengines.core.ScriptCache;
+import com.google.code.scriptengines.core.ScriptContexts;
+import com.google.code.scriptengines.core.SlotLayout;
 
-    private Map<String, Class> classMap = new ConcurrentHashMap<String, Class>();
+public class GroovyScriptEngine extends AbstractScriptEngine implements Compilable, Invocable, Restorable {
+
+    private volatile ScriptCache<Class> classMap = new LruScriptCache<Class>();
     private Map<String, MethodClosure> globalClosures = new ConcurrentHashMap<String, MethodClosure>();
+    private final InterfaceImplementor implementor = new InterfaceImplementor(this);
     private GroovyClassLoader loader;
     private volatile GroovyScriptEngineFactory factory;
-    private static int counter = 0;
+    private static final AtomicInteger counter = new AtomicInteger();
+    // returned by ScriptContexts.getAttribute for undefined variables
+    private static final Object NOT_FOUND = new Object();
+    // variables of each script class, see GroovyCompiledScript; the names
+    // are collected by script name while compiling, then kept by class
+    private static final Map<String, String[]> collectedNames =
+            new ConcurrentHashMap<String, String[]>();
+    private static final Map<Class, SlotLayout> variableLayouts =
+            Collections.synchronizedMap(new WeakHashMap<Class, SlotLayout>());
+
+    // state recorded by snapshot()
+    private BindingsSnapshot savedBindings;
+    private Map<String, MethodClosure> savedClosures;
 
     public GroovyScriptEngine() {
-        loader = new GroovyClassLoader(getParentLoader(), new CompilerConfiguration());
+        context = new ConcurrentScriptContext();
+        loader = new ScriptClassLoader(getParentLoader());
     }
 
     public Object eval(Reader reader, ScriptContext ctx) throws ScriptException {
@@ -95,7 +131,7 @@ public class GroovyScriptEngine extends AbstractScriptEngine implements Compilab
     }
 
     public Bindings createBindings() {
-        return new SimpleBindings();
+        return new HashBindings();
     }
 
     public ScriptEngineFactory getFactory() {
@@ -137,6 +173,34 @@ public class GroovyScriptEngine extends AbstractScriptEngine implements Compilab
         }
     }
 
+    /**
+     * Replaces the cache of compiled script classes, for instance to share
+     * one cache among several engines.
+     */
+    public void setScriptCache(ScriptCache<Class> cache) {
+        if (cache == null) {
+            throw new NullPointerException("null script cache");
+        }
+        classMap = cache;
+    }
+
+    /**
+     * Records the engine scope bindings and the functions defined by the
+     * scripts run so far.
+     */
+    public void snapshot() {
+        savedBindings = new BindingsSnapshot(getBindings(ScriptContext.ENGINE_SCOPE));
+        savedClosures = new HashMap<String, MethodClosure>(globalClosures);
+    }
+
+    public void restore() {
+        if (savedBindings == null) {
+            return;
+        }
+        setBindings(savedBindings.restore(), ScriptContext.ENGINE_SCOPE);
+        globalClosures = new ConcurrentHashMap<String, MethodClosure>(savedClosures);
+    }
+
     public Object getInterface(Class clasz) {
         return makeInterface(null, clasz);
     }
@@ -152,23 +216,36 @@ public class GroovyScriptEngine extends AbstractScriptEngine implements Compilab
         ctx.setAttribute("context", ctx, ScriptContext.ENGINE_SCOPE);
         java.io.Writer writer = ctx.getWriter();
         ctx.setAttribute("out", writer instanceof PrintWriter ? writer : new PrintWriter(writer), ScriptContext.ENGINE_SCOPE);
+        final ConcurrentScriptContext shared = ctx instanceof ConcurrentScriptContext
+                ? (ConcurrentScriptContext) ctx : null;
+        final Lock lock = ScriptContexts.lock(ctx);
         Binding binding = new Binding() {
             public Object getVariable(String name) {
-                synchronized (ctx) {
-                    int scope = ctx.getAttributesScope(name);
-                    if (scope != -1) {
-                        return ctx.getAttribute(name, scope);
-                    }
-                    throw new MissingPropertyException(name, getClass());
+                Object value;
+                if (shared != null) {
+                    value = shared.getAttribute(name, NOT_FOUND);
+                } else {
+                    value = ScriptContexts.getAttribute(ctx, name, NOT_FOUND, lock);
                 }
+                if (value != NOT_FOUND) {
+                    return value;
+                }
+                throw new MissingPropertyException(name, getClass());
             }
             public void setVariable(String name, Object value) {
-                synchronized (ctx) {
+                if (shared != null) {
+                    shared.setAttribute(name, value);
+                    return;
+                }
+                lock.lock();
+                try {
                     int scope = ctx.getAttributesScope(name);
                     if (scope == -1) {
                         scope = ScriptContext.ENGINE_SCOPE;
                     }
                     ctx.setAttribute(name, value, scope);
+                } finally {
+                    lock.unlock();
                 }
             }
         };
@@ -218,13 +295,22 @@ public class GroovyScriptEngine extends AbstractScriptEngine implements Compilab
     }
 
     Class getScriptClass(String script) throws SyntaxException, CompilationFailedException, IOException {
-        Class clazz = (Class) classMap.get(script);
+        String key = CacheKeys.forSource(script);
+        Class clazz = classMap.get(key);
         if (clazz != null) {
             return clazz;
         } else {
             java.io.InputStream stream = new ByteArrayInputStream(script.getBytes());
-            clazz = loader.parseClass(stream, generateScriptName());
-            classMap.put(script, clazz);
+            String scriptName = generateScriptName();
+            String[] names;
+            try {
+                clazz = loader.parseClass(stream, scriptName);
+            } finally {
+                // also when compilation fails after the names were collected
+                names = collectedNames.remove(scriptName);
+            }
+            variableLayouts.put(clazz, new SlotLayout(names == null ? new String[0] : names));
+            classMap.put(key, clazz);
             return clazz;
         }
     }
@@ -262,19 +348,24 @@ public class GroovyScriptEngine extends AbstractScriptEngine implements Compilab
         }
     }
 
-    private synchronized String generateScriptName() {
-        return "Script" + ++counter + ".groovy";
+    /*
+     * Returns the variables a script class uses through its binding, as
+     * found when it was compiled.
+     */
+    static SlotLayout getVariableLayout(Class scriptClass) {
+        SlotLayout ret = variableLayouts.get(scriptClass);
+        return ret == null ? new SlotLayout(new String[0]) : ret;
     }
 
-    private Object makeInterface(final Object obj, Class clazz) {
-        if (clazz == null || !clazz.isInterface()) {
-            throw new IllegalArgumentException("interface Class expected");
-        } else {
-            return Proxy.newProxyInstance(clazz.getClassLoader(), new Class[]{clazz}, new InvocationHandler() {
-                public Object invoke(Object proxy, Method m, Object args[]) throws Throwable {
-                    return invokeImpl(obj, m.getName(), args);
-                }
-            });
+    private String generateScriptName() {
+        return "Script" + counter.incrementAndGet() + ".groovy";
+    }
+
+    private Object makeInterface(Object obj, Class clazz) {
+        try {
+            return implementor.getInterface(obj, clazz);
+        } catch (ScriptException e) {
+            return null;
         }
     }
 
@@ -304,4 +395,50 @@ public class GroovyScriptEngine extends AbstractScriptEngine implements Compilab
         return buf.toString();
     }
 
+
+    /*
+     * Compiles scripts with an extra pass that records the variables each
+     * script reads or assigns through its binding.
+     */
+    private static final class ScriptClassLoader extends GroovyClassLoader {
+
+        ScriptClassLoader(ClassLoader parent) {
+            super(parent, new CompilerConfiguration());
+        }
+
+        protected CompilationUnit createCompilationUnit(CompilerConfiguration config,
+                                                        CodeSource source) {
+            CompilationUnit unit = super.createCompilationUnit(config, source);
+            // variable scopes are resolved by then
+            unit.addPhaseOperation(new VariableCollector(), Phases.CANONICALIZATION);
+            return unit;
+        }
+    }
+
+    private static final class VariableCollector
+            extends CompilationUnit.PrimaryClassNodeOperation {
+
+        public void call(final SourceUnit source, GeneratorContext context,
+                         ClassNode classNode) {
+            if (!classNode.isScript()) {
+                return;
+            }
+            final Set<String> names = new LinkedHashSet<String>();
+            new ClassCodeVisitorSupport() {
+                protected SourceUnit getSourceUnit() {
+                    return source;
+                }
+
+                public void visitVariableExpression(VariableExpression expression) {
+                    if (expression.getAccessedVariable() instanceof DynamicVariable) {
+                        names.add(expression.getName());
+                    }
+                }
+            }.visitClass(classNode);
+            // set by eval for every evaluation
+            names.remove("context");
+            names.remove("out");
+            collectedNames.put(source.getName(), names.toArray(new String[names.size()]));
+        }
+    }
 }
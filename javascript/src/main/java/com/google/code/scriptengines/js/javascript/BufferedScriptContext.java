@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.js.javascript;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.List;
+
+import javax.script.Bindings;
+import javax.script.ScriptContext;
+
+import com.google.code.scriptengines.js.util.OutputBuffer;
+
+/**
+ * ScriptContext handed to scripts for the duration of one evaluation.
+ * Everything is delegated to the caller's context except the writer,
+ * which is replaced by a per-evaluation {@link OutputBuffer}. Both the
+ * native <code>print</code> function and <code>context.getWriter()</code>
+ * write into the same buffer, so output stays in order. The writer is a
+ * PrintWriter over the buffer, as it is in a SimpleScriptContext, since
+ * scripts call <code>println</code> and <code>printf</code> on it.
+ */
+final class BufferedScriptContext implements ScriptContext {
+
+    private final ScriptContext delegate;
+    private final OutputBuffer out;
+    // created on first use; most scripts only call print
+    private PrintWriter writer;
+    // output of an enclosing evaluation on the same thread, if any
+    private OutputBuffer previous;
+
+    BufferedScriptContext(ScriptContext delegate, OutputBuffer out) {
+        this.delegate = delegate;
+        this.out = out;
+    }
+
+    ScriptContext getDelegate() {
+        return delegate;
+    }
+
+    OutputBuffer getOutputBuffer() {
+        return out;
+    }
+
+    OutputBuffer getPreviousOutput() {
+        return previous;
+    }
+
+    void setPreviousOutput(OutputBuffer previous) {
+        this.previous = previous;
+    }
+
+    public void setBindings(Bindings bindings, int scope) {
+        delegate.setBindings(bindings, scope);
+    }
+
+    public Bindings getBindings(int scope) {
+        return delegate.getBindings(scope);
+    }
+
+    public void setAttribute(String name, Object value, int scope) {
+        delegate.setAttribute(name, value, scope);
+    }
+
+    public Object getAttribute(String name, int scope) {
+        return delegate.getAttribute(name, scope);
+    }
+
+    public Object removeAttribute(String name, int scope) {
+        return delegate.removeAttribute(name, scope);
+    }
+
+    public Object getAttribute(String name) {
+        return delegate.getAttribute(name);
+    }
+
+    public int getAttributesScope(String name) {
+        return delegate.getAttributesScope(name);
+    }
+
+    public Writer getWriter() {
+        if (writer == null) {
+            writer = new PrintWriter(out);
+        }
+        return writer;
+    }
+
+    public Writer getErrorWriter() {
+        return delegate.getErrorWriter();
+    }
+
+    public void setWriter(Writer writer) {
+        try {
+            out.setTarget(writer);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        delegate.setWriter(writer);
+    }
+
+    public void setErrorWriter(Writer writer) {
+        delegate.setErrorWriter(writer);
+    }
+
+    public Reader getReader() {
+        return delegate.getReader();
+    }
+
+    public void setReader(Reader reader) {
+        delegate.setReader(reader);
+    }
+
+    public List<Integer> getScopes() {
+        return delegate.getScopes();
+    }
+}
@@ -23,40 +23,216 @@
  */
 package com.google.code.scriptengines.js.javascript;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
 
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
 import javax.script.ScriptException;
 import javax.script.SimpleScriptContext;
 
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.ScriptableObject;
+
+import com.google.code.scriptengines.core.CacheKeys;
+import com.google.code.scriptengines.core.LruScriptCache;
+import com.google.code.scriptengines.core.ScriptCache;
 import com.google.code.scriptengines.js.util.DeTagifier;
 
 /**
  * Embedded javascript interpreter.
+ * <p>
+ * Templates are DeTagified and compiled once and then kept in a cache,
+ * by default a {@link LruScriptCache} of its default capacity. When
+ * <code>ScriptEngine.FILENAME</code> names an existing file, the reader
+ * passed to <code>eval</code> is assumed to read that file and the
+ * compiled template is reused until the file's modification time or
+ * length changes, see {@link CacheKeys#forFile}; on a cache hit the
+ * reader is not read at all. Other templates are cached by a digest of
+ * their source and file name.
+ * <p>
+ * A template can include another one with
+ * <code>&lt;%@ include file="header.ejs" %&gt;</code>, where a relative
+ * path is resolved against the directory of the including template and
+ * the file is read in the platform's default encoding. Each included
+ * file is compiled once, cached like any other template file, and run
+ * in place of the directive whenever it is reached, much like a function
+ * call: it sees the variables of the including template, while names it
+ * declares itself stay local to it. A template that includes itself,
+ * directly or through others, fails with a "recursive include" error
+ * naming the chain of files.
  */
 public class EmbeddedRhinoScriptEngine extends RhinoScriptEngine {
     
     protected DeTagifier detagifier;
+
+    /* Static text is kept out of the generated source and written by a
+     * native function, which is cheaper than calling the context's writer
+     * through the Java bridge and lets the text be written as bytes that
+     * are encoded once per template (see RhinoScriptEngine.PRINT_STREAM).
+     */
+    private static final String LITERAL_FUNCTION = "__literal";
+    private static final String INCLUDE_FUNCTION = "__include";
+
+    private volatile ScriptCache<CompiledScript> templates =
+            new LruScriptCache<CompiledScript>();
     
     public EmbeddedRhinoScriptEngine() {
         detagifier = new DeTagifier("context.getWriter().write(\"",
                                     "\");\n",
                                     "context.getWriter().write(",
-                                    ");\n");
+                                    ");");
+        detagifier.setLiteralPool(LITERAL_FUNCTION + "(", ");", 0);
+        detagifier.setInclude(INCLUDE_FUNCTION + "(", ");");
     }
     
-    protected Reader preProcessScriptSource(Reader reader) throws ScriptException {
-        try {
-            String s = detagifier.parse(reader);
-            return new StringReader(s);
+    public Object eval(Reader reader, ScriptContext ctxt) throws ScriptException {
+        return getTemplate(reader, ctxt).eval(ctxt);
+    }
+
+    public Object eval(String script, ScriptContext ctxt) throws ScriptException {
+        if (script == null) {
+            throw new NullPointerException("null script");
+        }
+        return getTemplate(script, getFilename(ctxt)).eval(ctxt);
+    }
+
+    public CompiledScript compile(Reader script) throws ScriptException {
+        return getTemplate(script, context);
+    }
+
+    public CompiledScript compile(String script) throws ScriptException {
+        return getTemplate(script, getFilename(context));
+    }
+
+    /**
+     * Replaces the cache of compiled templates, for instance with one of
+     * another capacity. A compiled template runs in the scope of the engine
+     * that compiled it, so an engine whose cache is shared with others
+     * compiles again, and puts in place of the cached one, any template
+     * that another engine compiled.
+     */
+    public void setTemplateCache(ScriptCache<CompiledScript> templates) {
+        if (templates == null) {
+            throw new NullPointerException("null template cache");
         }
-        catch (IOException ee) {
-            throw new ScriptException(ee);
+        this.templates = templates;
+    }
+
+    /**
+     * Drops all cached templates.
+     */
+    public void clearTemplateCache() {
+        templates.clear();
+    }
+
+    private CompiledScript getTemplate(Reader reader, ScriptContext ctxt)
+    throws ScriptException {
+        String filename = getFilename(ctxt);
+        if (filename != null) {
+            File file = new File(filename);
+            if (file.isFile()) {
+                String key = CacheKeys.forFile(file);
+                CompiledScript ret = templates.get(key);
+                if (ret == null || ret.getEngine() != this) {
+                    ret = compileScript(reader, filename);
+                    templates.put(key, ret);
+                }
+                return ret;
+            }
         }
+        return getTemplate(readFully(reader), filename);
+    }
+
+    private CompiledScript getTemplate(String source, String filename)
+    throws ScriptException {
+        String key = CacheKeys.forSource(source);
+        if (filename != null) {
+            // the file name is compiled into the script for error messages
+            key = CacheKeys.forSource(filename + "\n" + key);
+        }
+        CompiledScript ret = templates.get(key);
+        if (ret == null || ret.getEngine() != this) {
+            ret = compileScript(new StringReader(source), filename);
+            templates.put(key, ret);
+        }
+        return ret;
+    }
+
+    /*
+     * Returns the compiled form of an included template file.
+     */
+    RhinoCompiledScript getFragment(File file) throws ScriptException {
+        String key = CacheKeys.forFile(file);
+        CompiledScript cached = templates.get(key);
+        RhinoCompiledScript ret;
+        if (cached != null && cached.getEngine() == this) {
+            ret = (RhinoCompiledScript) cached;
+        } else {
+            Reader reader;
+            try {
+                reader = new InputStreamReader(new FileInputStream(file));
+            } catch (IOException e) {
+                throw new ScriptException(e);
+            }
+            try {
+                ret = compileScript(reader, file.getPath());
+            } finally {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+            templates.put(key, ret);
+        }
+        return ret;
+    }
+
+    RhinoCompiledScript compileScript(Reader reader, String filename)
+    throws ScriptException {
+        // the template is converted while Rhino parses it; the literal
+        // pool is complete once compilation has consumed the reader
+        List<String> literals = new ArrayList<String>();
+        ScriptableObject statics = new NativeObject();
+        statics.setPrototype(getTopLevel());
+        File source = filename == null ? null : new File(filename).getAbsoluteFile();
+        statics.defineProperty(INCLUDE_FUNCTION, new IncludeFunction(this, source, getTopLevel()),
+                ScriptableObject.READONLY | ScriptableObject.DONTENUM);
+        RhinoCompiledScript ret = compileScript(detagifier.open(reader, literals),
+                                                filename, statics);
+        if (!literals.isEmpty()) {
+            statics.defineProperty(LITERAL_FUNCTION,
+                    new LiteralFunction(literals.toArray(new String[literals.size()]),
+                                        getTopLevel()),
+                    ScriptableObject.READONLY | ScriptableObject.DONTENUM);
+        }
+        return ret;
+    }
+
+    private static String readFully(Reader reader) throws ScriptException {
+        char[] arr = new char[8192];
+        StringBuilder buf = new StringBuilder();
+        int numChars;
+        try {
+            while ((numChars = reader.read(arr, 0, arr.length)) > 0) {
+                buf.append(arr, 0, numChars);
+            }
+        } catch (IOException exp) {
+            throw new ScriptException(exp);
+        }
+        return buf.toString();
+    }
+
+    protected Reader preProcessScriptSource(Reader reader) throws ScriptException {
+        return detagifier.open(reader, null);
     }
     
     public static void main(String[] args) throws Exception {
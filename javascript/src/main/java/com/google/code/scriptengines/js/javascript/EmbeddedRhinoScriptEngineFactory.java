@@ -30,7 +30,7 @@ import java.util.Properties;
 
 import javax.script.ScriptEngine;
 
-import com.google.code.scriptengines.js.util.ScriptEngineFactoryBase;
+import com.google.code.scriptengines.core.ScriptEngineFactoryBase;
 
 /**
  * Factory to create EmbeddedRhinoScriptEngine
@@ -26,6 +26,8 @@ package com.google.code.scriptengines.js.javascript;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.script.Bindings;
 import javax.script.ScriptContext;
@@ -38,6 +40,9 @@ import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.Wrapper;
 
+import com.google.code.scriptengines.core.ConcurrentScriptContext;
+import com.google.code.scriptengines.core.ScriptContexts;
+
 /**
  * ExternalScriptable is an implementation of Scriptable 
  * backed by a JSR 223 Bindings instance.
@@ -63,6 +68,20 @@ final class ExternalScriptable implements Scriptable {
      */
     private Map indexedProps;
 
+    /* Guards indexedProps. A lock rather than a monitor, so that virtual
+     * threads waiting for it do not pin their carrier thread.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // where attributes are read; evaluations see the caller's context
+    // through a BufferedScriptContext, which only replaces the writer
+    // and is not shared, so locking it would exclude nobody
+    private final ScriptContext attributes;
+    // the same context if it can be used without holding its lock
+    private final ConcurrentScriptContext shared;
+    // guards attributes; never held together with the lock above
+    private final Lock attributesLock;
+
     // my prototype
     private Scriptable prototype;
     // my parent scope, if any
@@ -78,6 +97,11 @@ final class ExternalScriptable implements Scriptable {
         }
         this.context = context;
         this.indexedProps = indexedProps;
+        attributes = context instanceof BufferedScriptContext
+                ? ((BufferedScriptContext) context).getDelegate() : context;
+        shared = attributes instanceof ConcurrentScriptContext
+                ? (ConcurrentScriptContext) attributes : null;
+        attributesLock = ScriptContexts.lock(attributes);
     }
 
     ScriptContext getContext() {
@@ -109,24 +133,30 @@ final class ExternalScriptable implements Scriptable {
      * @param start the object in which the lookup began
      * @return the value of the property (may be null), or NOT_FOUND
      */
-    public synchronized Object get(String name, Scriptable start) {
+    public Object get(String name, Scriptable start) {
         if (isEmpty(name)) {
-            if (indexedProps.containsKey(name)) {                
-                return indexedProps.get(name);
-            } else {
-                return NOT_FOUND;
-            }
-        } else {
-            synchronized (context) {
-                int scope = context.getAttributesScope(name);
-                if (scope != -1) {
-                    Object value = context.getAttribute(name, scope);
-                    return Context.javaToJS(value, this);
+            lock.lock();
+            try {
+                if (indexedProps.containsKey(name)) {                
+                    return indexedProps.get(name);
                 } else {
                     return NOT_FOUND;
                 }
+            } finally {
+                lock.unlock();
             }
         }
+        Object value;
+        if (shared != null) {
+            value = shared.getAttribute(name, NOT_FOUND);
+        } else {
+            value = ScriptContexts.getAttribute(attributes, name, NOT_FOUND, attributesLock);
+        }
+        if (value != NOT_FOUND) {
+            return Context.javaToJS(value, this);
+        } else {
+            return NOT_FOUND;
+        }
     }
 
     /**
@@ -136,13 +166,18 @@ final class ExternalScriptable implements Scriptable {
      * @param start the object in which the lookup began
      * @return the value of the property (may be null), or NOT_FOUND
      */
-    public synchronized Object get(int index, Scriptable start) {
-        Integer key = new Integer(index);
-        if (indexedProps.containsKey(index)) {
-            return indexedProps.get(key);
-        } else {
-            return NOT_FOUND;
-        }            
+    public Object get(int index, Scriptable start) {
+        lock.lock();
+        try {
+            Integer key = new Integer(index);
+            if (indexedProps.containsKey(index)) {
+                return indexedProps.get(key);
+            } else {
+                return NOT_FOUND;
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -152,14 +187,20 @@ final class ExternalScriptable implements Scriptable {
      * @param start the object in which the lookup began
      * @return true if and only if the property was found in the object
      */
-    public synchronized boolean has(String name, Scriptable start) {
+    public boolean has(String name, Scriptable start) {
         if (isEmpty(name)) {
-            return indexedProps.containsKey(name);
-        } else {
-            synchronized (context) {
-                return context.getAttributesScope(name) != -1;
+            lock.lock();
+            try {
+                return indexedProps.containsKey(name);
+            } finally {
+                lock.unlock();
             }
         }
+        if (shared != null) {
+            return shared.getAttributesScope(name) != -1;
+        }
+        return ScriptContexts.getAttribute(attributes, name, NOT_FOUND, attributesLock)
+                != NOT_FOUND;
     }
 
     /**
@@ -169,9 +210,14 @@ final class ExternalScriptable implements Scriptable {
      * @param start the object in which the lookup began
      * @return true if and only if the property was found in the object
      */
-    public synchronized boolean has(int index, Scriptable start) {
-        Integer key = new Integer(index);
-        return indexedProps.containsKey(key);
+    public boolean has(int index, Scriptable start) {
+        lock.lock();
+        try {
+            Integer key = new Integer(index);
+            return indexedProps.containsKey(key);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -183,17 +229,26 @@ final class ExternalScriptable implements Scriptable {
      */
     public void put(String name, Scriptable start, Object value) {
         if (start == this) {
-            synchronized (this) {
-                if (isEmpty(name)) {
+            if (isEmpty(name)) {
+                lock.lock();
+                try {
                     indexedProps.put(name, value);
-                } else {
-                    synchronized (context) {
-                        int scope = context.getAttributesScope(name);
-                        if (scope == -1) {
-                            scope = ScriptContext.ENGINE_SCOPE;
-                        }
-                        context.setAttribute(name, jsToJava(value), scope);
+                } finally {
+                    lock.unlock();
+                }
+            } else if (shared != null) {
+                shared.setAttribute(name, jsToJava(value));
+            } else {
+                Object javaValue = jsToJava(value);
+                attributesLock.lock();
+                try {
+                    int scope = attributes.getAttributesScope(name);
+                    if (scope == -1) {
+                        scope = ScriptContext.ENGINE_SCOPE;
                     }
+                    attributes.setAttribute(name, javaValue, scope);
+                } finally {
+                    attributesLock.unlock();
                 }
             }
         } else {
@@ -210,8 +265,11 @@ final class ExternalScriptable implements Scriptable {
      */
     public void put(int index, Scriptable start, Object value) {
         if (start == this) {
-            synchronized (this) {
+            lock.lock();
+            try {
                 indexedProps.put(new Integer(index), value);
+            } finally {
+                lock.unlock();
             }
         } else {
             start.put(index, start, value);
@@ -225,15 +283,25 @@ final class ExternalScriptable implements Scriptable {
      *
      * @param name the name of the property
      */
-    public synchronized void delete(String name) {
+    public void delete(String name) {
         if (isEmpty(name)) {
-            indexedProps.remove(name);
+            lock.lock();
+            try {
+                indexedProps.remove(name);
+            } finally {
+                lock.unlock();
+            }
+        } else if (shared != null) {
+            shared.removeAttribute(name);
         } else {
-            synchronized (context) {
-                int scope = context.getAttributesScope(name);
+            attributesLock.lock();
+            try {
+                int scope = attributes.getAttributesScope(name);
                 if (scope != -1) {
-                    context.removeAttribute(name, scope);
+                    attributes.removeAttribute(name, scope);
                 }
+            } finally {
+                attributesLock.unlock();
             }
         }
     }
@@ -246,7 +314,12 @@ final class ExternalScriptable implements Scriptable {
      * @param index the numeric index for the property
      */
     public void delete(int index) {
-        indexedProps.remove(new Integer(index));
+        lock.lock();
+        try {
+            indexedProps.remove(new Integer(index));
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -290,17 +363,22 @@ final class ExternalScriptable implements Scriptable {
      * @return an array of Objects. Each entry in the array is either
      *         a java.lang.String or a java.lang.Number
      */
-    public synchronized Object[] getIds() {
+    public Object[] getIds() {
         String[] keys = getAllKeys();
-        int size = keys.length + indexedProps.size();
-        Object[] res = new Object[size];
-        System.arraycopy(keys, 0, res, 0, keys.length);
-        int i = keys.length;
-        // now add all indexed properties
-        for (Object index : indexedProps.keySet()) {
-            res[i++] = index;
+        lock.lock();
+        try {
+            int size = keys.length + indexedProps.size();
+            Object[] res = new Object[size];
+            System.arraycopy(keys, 0, res, 0, keys.length);
+            int i = keys.length;
+            // now add all indexed properties
+            for (Object index : indexedProps.keySet()) {
+                res[i++] = index;
+            }
+            return res;
+        } finally {
+            lock.unlock();
         }
-        return res;
     }
 
     /**
@@ -421,9 +499,10 @@ final class ExternalScriptable implements Scriptable {
 
     private String[] getAllKeys() {
         ArrayList<String> list = new ArrayList<String>();
-        synchronized (context) {
-            for (int scope : context.getScopes()) {
-                Bindings bindings = context.getBindings(scope);
+        attributesLock.lock();
+        try {
+            for (int scope : attributes.getScopes()) {
+                Bindings bindings = attributes.getBindings(scope);
                 if (bindings != null) {
                     list.ensureCapacity(bindings.size());
                     for (String key : bindings.keySet()) {
@@ -431,6 +510,8 @@ final class ExternalScriptable implements Scriptable {
                     }
                 }
             }
+        } finally {
+            attributesLock.unlock();
         }
         String[] res = new String[list.size()];
         list.toArray(res);
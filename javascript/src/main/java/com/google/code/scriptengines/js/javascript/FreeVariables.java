@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.js.javascript;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.mozilla.javascript.Node;
+import org.mozilla.javascript.ScriptOrFnNode;
+import org.mozilla.javascript.Token;
+
+/**
+ * Finds the free variables of a parsed script: names it reads or assigns
+ * that neither the script nor an enclosing function declares. Must run
+ * before the tree is compiled, which rewrites local variable accesses.
+ */
+final class FreeVariables {
+
+    private final Set<String> names = new LinkedHashSet<String>();
+    private final Set<String> caught = new HashSet<String>();
+    // the script and the functions enclosing the node being visited
+    private final List<ScriptOrFnNode> scopes = new ArrayList<ScriptOrFnNode>();
+
+    private FreeVariables() {
+    }
+
+    /**
+     * Returns the free variables in the order of their first use.
+     */
+    static String[] find(ScriptOrFnNode script) {
+        FreeVariables ret = new FreeVariables();
+        ret.visitScope(script);
+        // catch blocks bind their names at run time; a name used both
+        // inside and outside of one is dropped, which only means that
+        // it cannot be given a slot
+        ret.names.removeAll(ret.caught);
+        return ret.names.toArray(new String[ret.names.size()]);
+    }
+
+    private void visitScope(ScriptOrFnNode scope) {
+        scopes.add(scope);
+        visitChildren(scope);
+        scopes.remove(scopes.size() - 1);
+    }
+
+    private void visitChildren(Node parent) {
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNext()) {
+            switch (node.getType()) {
+            case Token.NAME:
+            case Token.BINDNAME:
+            case Token.TYPEOFNAME:
+                String name = node.getString();
+                if (!isDeclared(name)) {
+                    names.add(name);
+                }
+                break;
+            case Token.CATCH_SCOPE:
+                caught.add(node.getFirstChild().getString());
+                break;
+            case Token.FUNCTION:
+                ScriptOrFnNode scope = scopes.get(scopes.size() - 1);
+                visitScope(scope.getFunctionNode(node.getExistingIntProp(Node.FUNCTION_PROP)));
+                break;
+            }
+            visitChildren(node);
+        }
+    }
+
+    private boolean isDeclared(String name) {
+        if (scopes.size() > 1 && "arguments".equals(name)) {
+            return true;
+        }
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Map symbols = scopes.get(i).getSymbolTable();
+            if (symbols != null && symbols.containsKey(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.js.javascript;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.script.ScriptException;
+
+import org.mozilla.javascript.BaseFunction;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+
+/**
+ * Runs the template named by an include directive. Relative paths are
+ * resolved against the directory of the including template. The included
+ * template is compiled once and shared by every template that includes
+ * it; see {@link EmbeddedRhinoScriptEngine#getFragment(File)}. The files
+ * being included on the current thread are kept, so that a template
+ * including itself again fails instead of recursing until the stack
+ * overflows.
+ */
+final class IncludeFunction extends BaseFunction {
+
+    private static final long serialVersionUID = 1L;
+
+    // Context thread local holding the canonical paths of the templates
+    // being run, outermost first
+    private static final Object INCLUDES_KEY = new Object();
+
+    private final EmbeddedRhinoScriptEngine engine;
+    // the including template and its directory, null if it is not a file
+    private final File source;
+    private final File baseDir;
+
+    IncludeFunction(EmbeddedRhinoScriptEngine engine, File source, Scriptable scope) {
+        this.engine = engine;
+        this.source = source;
+        this.baseDir = source == null ? null : source.getParentFile();
+        setParentScope(scope);
+        setPrototype(getFunctionPrototype(scope));
+    }
+
+    public Object call(Context cx, Scriptable scope, Scriptable thisObj,
+                       Object[] args) {
+        File file = new File(Context.toString(args[0]));
+        if (!file.isAbsolute() && baseDir != null) {
+            file = new File(baseDir, file.getPath());
+        }
+        if (!file.isFile()) {
+            throw Context.reportRuntimeError("included template not found: " + file);
+        }
+        List<String> includes = (List<String>) cx.getThreadLocal(INCLUDES_KEY);
+        boolean outermost = includes == null;
+        if (outermost) {
+            includes = new ArrayList<String>();
+            if (source != null) {
+                includes.add(canonicalPath(source));
+            }
+        }
+        String path = canonicalPath(file);
+        if (includes.contains(path)) {
+            StringBuilder chain = new StringBuilder();
+            for (String include : includes) {
+                chain.append(include).append(" -> ");
+            }
+            throw Context.reportRuntimeError("recursive include: " + chain.append(path));
+        }
+        RhinoCompiledScript fragment;
+        try {
+            fragment = engine.getFragment(file);
+        } catch (ScriptException e) {
+            throw Context.throwAsScriptRuntimeEx(e);
+        }
+        includes.add(path);
+        if (outermost) {
+            cx.putThreadLocal(INCLUDES_KEY, includes);
+        }
+        try {
+            fragment.exec(cx, scope);
+        } finally {
+            includes.remove(includes.size() - 1);
+            if (outermost) {
+                cx.removeThreadLocal(INCLUDES_KEY);
+            }
+        }
+        return Context.getUndefinedValue();
+    }
+
+    private static String canonicalPath(File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+
+    public String getFunctionName() {
+        return "__include";
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.js.javascript;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+
+import org.mozilla.javascript.BaseFunction;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+
+import com.google.code.scriptengines.js.util.OutputBuffer;
+
+/**
+ * Writes the static text of a compiled template. Templates call it with
+ * the index of a literal run; the text goes to the output of the current
+ * evaluation. When that output encodes into a stream, the text is written
+ * as bytes encoded once per template and charset.
+ */
+final class LiteralFunction extends BaseFunction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String[] literals;
+    private volatile Encoded encoded;
+
+    LiteralFunction(String[] literals, Scriptable scope) {
+        this.literals = literals;
+        setParentScope(scope);
+        setPrototype(getFunctionPrototype(scope));
+    }
+
+    public Object call(Context cx, Scriptable scope, Scriptable thisObj,
+                       Object[] args) {
+        OutputBuffer out = RhinoScriptEngine.getCurrentOutput(cx);
+        if (out == null) {
+            throw Context.reportRuntimeError("template output is not available");
+        }
+        int index = (int) Context.toNumber(args[0]);
+        try {
+            Charset charset = out.getCharset();
+            if (charset == null) {
+                out.write(literals[index]);
+            } else {
+                out.write(literals[index], getEncoded(charset)[index]);
+            }
+        } catch (IOException e) {
+            throw Context.throwAsScriptRuntimeEx(e);
+        }
+        return Context.getUndefinedValue();
+    }
+
+    public String getFunctionName() {
+        return "__literal";
+    }
+
+    private byte[][] getEncoded(Charset charset) throws UnsupportedEncodingException {
+        Encoded enc = encoded;
+        if (enc == null || !enc.charset.equals(charset)) {
+            byte[][] bytes = new byte[literals.length][];
+            for (int i = 0; i < literals.length; i++) {
+                bytes[i] = literals[i].getBytes(charset.name());
+            }
+            encoded = enc = new Encoded(charset, bytes);
+        }
+        return enc.bytes;
+    }
+
+    private static final class Encoded {
+        final Charset charset;
+        final byte[][] bytes;
+
+        Encoded(Charset charset, byte[][] bytes) {
+            this.charset = charset;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.js.javascript;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.mozilla.javascript.BaseFunction;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.Undefined;
+
+/**
+ * Native implementation of the <code>print</code> function. Replaces the
+ * script-defined version that went through the JavaScript-to-Java bridge
+ * for every call; behaves the same way (undefined and null are printed
+ * by name, followed by a line separator).
+ */
+final class PrintFunction extends BaseFunction {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final String LINE_SEPARATOR =
+            System.getProperty("line.separator", "\n");
+
+    private final Writer out;
+
+    PrintFunction(Writer out, Scriptable scope) {
+        this.out = out;
+        setParentScope(scope);
+        setPrototype(getFunctionPrototype(scope));
+    }
+
+    public Object call(Context cx, Scriptable scope, Scriptable thisObj,
+                       Object[] args) {
+        Object arg = args.length == 0 ? Undefined.instance : args[0];
+        try {
+            out.write(Context.toString(arg));
+            out.write(LINE_SEPARATOR);
+        } catch (IOException e) {
+            throw Context.throwAsScriptRuntimeEx(e);
+        }
+        return Context.getUndefinedValue();
+    }
+
+    public String getFunctionName() {
+        return "print";
+    }
+
+    public int getArity() {
+        return 1;
+    }
+
+    public int getLength() {
+        return 1;
+    }
+}
@@ -23,6 +23,9 @@
  */
 package com.google.code.scriptengines.js.javascript;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.script.CompiledScript;
 import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
@@ -30,10 +33,15 @@ import javax.script.ScriptException;
 
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.JavaScriptException;
+import org.mozilla.javascript.NativeObject;
 import org.mozilla.javascript.RhinoException;
 import org.mozilla.javascript.Script;
 import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
 
+import com.google.code.scriptengines.core.PreparedScript;
+import com.google.code.scriptengines.core.SlotBindings;
+import com.google.code.scriptengines.core.SlotLayout;
 import com.google.code.scriptengines.js.util.ExtendedScriptException;
 
 /**
@@ -43,26 +51,50 @@ import com.google.code.scriptengines.js.util.ExtendedScriptException;
  * @version 1.0
  * @since 1.6
  */
-final class RhinoCompiledScript extends CompiledScript {
+final class RhinoCompiledScript extends CompiledScript implements PreparedScript {
     
     private RhinoScriptEngine engine;
     private Script script;
+    // read-only values the script expects to find in scope, may be null
+    private Scriptable statics;
+    // free variables found by the parser
+    private final String[] names;
+    // slots of the free variables that the engine does not define itself
+    private volatile SlotLayout layout;
     private final static boolean DEBUG = RhinoScriptEngine.DEBUG;
     
-    RhinoCompiledScript(RhinoScriptEngine engine, Script script) {
+    RhinoCompiledScript(RhinoScriptEngine engine, Script script, Scriptable statics,
+                        String[] names) {
         this.engine = engine;
         this.script = script;
+        this.statics = statics;
+        this.names = names;
+    }
+    
+    public String[] getVariableNames() {
+        return getLayout().getNames();
+    }
+    
+    public Object eval(Object[] slots) throws ScriptException {
+        return eval(new SlotBindings(getLayout(), slots));
     }
     
     public Object eval(ScriptContext context) throws ScriptException {
         
         Object result = null;
         Context cx = RhinoScriptEngine.enterContext();
+        Scriptable scope = null;
+        boolean completed = false;
         try {
             
-            Scriptable scope = engine.getRuntimeScope(context);
+            scope = engine.getRuntimeScope(context);
+            if (statics != null) {
+                // statics sit between the scope and the standard objects
+                scope.setPrototype(statics);
+            }
             Object ret = script.exec(cx, scope);
             result = engine.unwrapReturnValue(ret);
+            completed = true;
         } catch (JavaScriptException jse) {
             if (DEBUG) jse.printStackTrace();
             int line = (line = jse.lineNumber()) == 0 ? -1 : line;
@@ -76,14 +108,56 @@ final class RhinoCompiledScript extends CompiledScript {
             int line = (line = re.lineNumber()) == 0 ? -1 : line;
             throw new ExtendedScriptException(re, re.toString(), re.sourceName(), line);
         } finally {
-            Context.exit();
+            try {
+                engine.releaseRuntimeScope(scope, completed);
+            } finally {
+                Context.exit();
+            }
         }
         
         return result;
     }
     
+    /*
+     * Runs the script as part of another one, for template includes.
+     * Names the script declares stay local to it; other names resolve
+     * through the caller's scope, and output goes to the caller's.
+     */
+    void exec(Context cx, Scriptable caller) {
+        Scriptable scope = new NativeObject();
+        scope.setPrototype(statics != null ? statics : engine.getTopLevel());
+        scope.setParentScope(caller);
+        script.exec(cx, scope);
+    }
+
     public ScriptEngine getEngine() {
         return engine;
     }
     
+    /*
+     * Leaves out the standard objects, the statics, and the names every
+     * runtime scope defines. Done on first use, as the statics of a
+     * template are only complete once it has been compiled.
+     */
+    private SlotLayout getLayout() {
+        SlotLayout ret = layout;
+        if (ret == null) {
+            Scriptable scope = statics != null ? statics : engine.getTopLevel();
+            List<String> free = new ArrayList<String>();
+            RhinoScriptEngine.enterContext();
+            try {
+                for (String name : names) {
+                    if (!name.equals("context") && !name.equals("print")
+                            && !ScriptableObject.hasProperty(scope, name)) {
+                        free.add(name);
+                    }
+                }
+            } finally {
+                Context.exit();
+            }
+            layout = ret = new SlotLayout(free.toArray(new String[free.size()]));
+        }
+        return ret;
+    }
+    
 }
@@ -44,9 +44,13 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.Reader;
 import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Method;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -59,24 +63,34 @@ import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineFactory;
 import javax.script.ScriptException;
-import javax.script.SimpleBindings;
 import javax.script.SimpleScriptContext;
 
+import org.mozilla.javascript.CompilerEnvirons;
 import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Evaluator;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.ImporterTopLevel;
+import org.mozilla.javascript.Interpreter;
 import org.mozilla.javascript.JavaScriptException;
 import org.mozilla.javascript.LazilyLoadedCtor;
+import org.mozilla.javascript.Parser;
 import org.mozilla.javascript.RhinoException;
 import org.mozilla.javascript.Script;
+import org.mozilla.javascript.ScriptOrFnNode;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.Synchronizer;
 import org.mozilla.javascript.Undefined;
 import org.mozilla.javascript.Wrapper;
+import org.mozilla.javascript.optimizer.Codegen;
 
+import com.google.code.scriptengines.core.BindingsSnapshot;
+import com.google.code.scriptengines.core.ConcurrentScriptContext;
+import com.google.code.scriptengines.core.HashBindings;
+import com.google.code.scriptengines.core.InterfaceImplementor;
+import com.google.code.scriptengines.core.Restorable;
 import com.google.code.scriptengines.js.util.ExtendedScriptException;
-import com.google.code.scriptengines.js.util.InterfaceImplementor;
+import com.google.code.scriptengines.js.util.OutputBuffer;
 
 /**
  * Implementation of <code>ScriptEngine</code> using the Mozilla Rhino
@@ -96,11 +110,37 @@ import com.google.code.scriptengines.js.util.InterfaceImplementor;
  *
  */
 public class RhinoScriptEngine extends AbstractScriptEngine
-        implements  Invocable, Compilable {
+        implements  Invocable, Compilable, Restorable {
     
     public static final boolean DEBUG = false;
     private static final String TOPLEVEL_SCRIPT_NAME = "META-INF/toplevel.js";
 
+    // Context thread local holding the OutputBuffer of the running evaluation
+    private static final Object OUTPUT_KEY = new Object();
+
+    /**
+     * ScriptContext attribute holding the capacity hint (in characters) of
+     * the buffer used by <code>print</code> and <code>context.getWriter()</code>.
+     * Output is handed to the context's writer when the buffer fills up and
+     * once more at the end of the evaluation.
+     */
+    public static final String PRINT_BUFFER_SIZE = "javascript.print.bufferSize";
+
+    /**
+     * ScriptContext attribute holding an <code>OutputStream</code> or a
+     * <code>WritableByteChannel</code>. When set, script output is encoded
+     * straight into it instead of going through the context's writer, and
+     * the static text of embedded templates is written as bytes encoded
+     * once per template.
+     */
+    public static final String PRINT_STREAM = "javascript.print.stream";
+
+    /**
+     * ScriptContext attribute naming the encoding used with
+     * {@link #PRINT_STREAM}. Defaults to UTF-8.
+     */
+    public static final String PRINT_ENCODING = "javascript.print.encoding";
+
     /* Scope where standard JavaScript objects and our
      * extensions to it are stored. Note that these are not
      * user defined engine level global variables. These are
@@ -114,6 +154,10 @@ public class RhinoScriptEngine extends AbstractScriptEngine
      */
     private Map indexedProps;
 
+    // state recorded by snapshot()
+    private BindingsSnapshot savedBindings;
+    private Map savedIndexedProps;
+
     private ScriptEngineFactory factory;
     private InterfaceImplementor implementor;
 
@@ -156,6 +200,7 @@ public class RhinoScriptEngine extends AbstractScriptEngine
      * Creates a new instance of RhinoScriptEngine
      */
     public RhinoScriptEngine() {
+        context = new ConcurrentScriptContext();
        
         Context cx = enterContext();
 
@@ -198,24 +243,15 @@ public class RhinoScriptEngine extends AbstractScriptEngine
         Object ret;
         
         Context cx = enterContext();
+        Scriptable scope = null;
+        boolean completed = false;
         try {
-            Scriptable scope = getRuntimeScope(ctxt);
-            scope.put("context", scope, ctxt);
-
-            // NOTE (RRC) - why does it look straight into the engine instead of asking
-            // the given ScriptContext object?
-            // Modified to use the context
-            // String filename = (String) get(ScriptEngine.FILENAME);
-            String filename = null;
-            if (ctxt != null && ctxt.getBindings(ScriptContext.ENGINE_SCOPE) != null) {
-                filename = (String) ctxt.getBindings(ScriptContext.ENGINE_SCOPE).get(ScriptEngine.FILENAME);
-            }
-            if (filename == null) {
-                filename = (String) get(ScriptEngine.FILENAME);
-            }
-            
+            scope = getRuntimeScope(ctxt);
+
+            String filename = getFilename(ctxt);
             filename = filename == null ? "<Unknown source>" : filename;
             ret = cx.evaluateReader(scope, preProcessScriptSource(reader), filename , 1,  null);
+            completed = true;
         } catch (JavaScriptException jse) {
             if (DEBUG) jse.printStackTrace();
             int line = (line = jse.lineNumber()) == 0 ? -1 : line;
@@ -231,7 +267,11 @@ public class RhinoScriptEngine extends AbstractScriptEngine
         } catch (IOException ee) {
             throw new ScriptException(ee);
         } finally {
-            cx.exit();
+            try {
+                releaseRuntimeScope(scope, completed);
+            } finally {
+                cx.exit();
+            }
         }
         
         return unwrapReturnValue(ret);
@@ -241,7 +281,8 @@ public class RhinoScriptEngine extends AbstractScriptEngine
         if (script == null) {
             throw new NullPointerException("null script");
         }
-        return eval(preProcessScriptSource(new StringReader(script)) , ctxt);
+        // eval(Reader, ScriptContext) takes care of preprocessing
+        return eval(new StringReader(script), ctxt);
     }
     
     public ScriptEngineFactory getFactory() {
@@ -253,7 +294,7 @@ public class RhinoScriptEngine extends AbstractScriptEngine
     }
     
     public Bindings createBindings() {
-        return new SimpleBindings();
+        return new HashBindings();
     }
     
     //Invocable methods
@@ -266,6 +307,8 @@ public class RhinoScriptEngine extends AbstractScriptEngine
     throws ScriptException, NoSuchMethodException {
         
         Context cx = enterContext();
+        boolean completed = false;
+        Scriptable engineScope = null;
         try {
             if (name == null) {
                 throw new NullPointerException("method name is null");
@@ -275,7 +318,7 @@ public class RhinoScriptEngine extends AbstractScriptEngine
                 thiz = cx.toObject(thiz, topLevel);
             }
             
-            Scriptable engineScope = getRuntimeScope(context);
+            engineScope = getRuntimeScope(context);
             Scriptable localScope = (thiz != null)? (Scriptable) thiz :
                                                     engineScope;
             Object obj = ScriptableObject.getProperty(localScope, name);
@@ -290,7 +333,9 @@ public class RhinoScriptEngine extends AbstractScriptEngine
             }
             Object result = func.call(cx, scope, localScope, 
                                       wrapArguments(args));
-            return unwrapReturnValue(result);
+            result = unwrapReturnValue(result);
+            completed = true;
+            return result;
         } catch (JavaScriptException jse) {
             if (DEBUG) jse.printStackTrace();
             int line = (line = jse.lineNumber()) == 0 ? -1 : line;
@@ -304,7 +349,11 @@ public class RhinoScriptEngine extends AbstractScriptEngine
             int line = (line = re.lineNumber()) == 0 ? -1 : line;
             throw new ExtendedScriptException(re, re.toString(), re.sourceName(), line);
         } finally {
-            cx.exit();
+            try {
+                releaseRuntimeScope(engineScope, completed);
+            } finally {
+                cx.exit();
+            }
         }
     }
    
@@ -328,50 +377,114 @@ public class RhinoScriptEngine extends AbstractScriptEngine
         }
     }
 
-    private static final String printSource = 
-            "function print(str) {                         \n" +
-            "    if (typeof(str) == 'undefined') {         \n" +
-            "        str = 'undefined';                    \n" +
-            "    } else if (str == null) {                 \n" +
-            "        str = 'null';                         \n" +
-            "    }                                         \n" +
-            "    context.getWriter().println(String(str)); \n" +
-            "}";
-    
     Scriptable getRuntimeScope(ScriptContext ctxt) {
         if (ctxt == null) {
             throw new NullPointerException("null script context");
         }
 
+        // scripts write through a per-evaluation buffer, which is
+        // released by releaseRuntimeScope once the evaluation is done
+        BufferedScriptContext bufferedCtxt =
+                new BufferedScriptContext(ctxt, createOutputBuffer(ctxt));
+        Context cx = Context.getCurrentContext();
+        if (cx != null) {
+            bufferedCtxt.setPreviousOutput(getCurrentOutput(cx));
+            cx.putThreadLocal(OUTPUT_KEY, bufferedCtxt.getOutputBuffer());
+        }
+
         // we create a scope for the given ScriptContext
-        Scriptable newScope = new ExternalScriptable(ctxt, indexedProps);
+        Scriptable newScope = new ExternalScriptable(bufferedCtxt, indexedProps);
 
         // Set the prototype of newScope to be 'topLevel' so that
         // JavaScript standard objects are visible from the scope.
         newScope.setPrototype(topLevel);
 
         // define "context" variable in the new scope
-        newScope.put("context", newScope, ctxt);
+        newScope.put("context", newScope, bufferedCtxt);
        
         // define "print" function in the new scope
-        Context cx = enterContext();
-        try {
-            cx.evaluateString(newScope, printSource, "print", 1, null);
-        } finally {
-            cx.exit();
-        }
+        newScope.put("print", newScope,
+                     new PrintFunction(bufferedCtxt.getOutputBuffer(), topLevel));
         return newScope;
     }
+
+    /*
+     * Undoes getRuntimeScope and flushes the output of the evaluation.
+     * When the evaluation did not complete, a failure to flush is dropped
+     * so that it does not hide the exception already on its way out.
+     */
+    void releaseRuntimeScope(Scriptable scope, boolean completed)
+    throws ScriptException {
+        if (scope instanceof ExternalScriptable) {
+            ScriptContext ctxt = ((ExternalScriptable) scope).getContext();
+            if (ctxt instanceof BufferedScriptContext) {
+                BufferedScriptContext bufferedCtxt = (BufferedScriptContext) ctxt;
+                Context cx = Context.getCurrentContext();
+                if (cx != null) {
+                    OutputBuffer previous = bufferedCtxt.getPreviousOutput();
+                    if (previous != null) {
+                        cx.putThreadLocal(OUTPUT_KEY, previous);
+                    } else {
+                        cx.removeThreadLocal(OUTPUT_KEY);
+                    }
+                }
+                try {
+                    bufferedCtxt.getOutputBuffer().release();
+                } catch (IOException e) {
+                    if (completed) {
+                        throw new ScriptException(e);
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Returns the output of the evaluation running on the given Context,
+     * or null.
+     */
+    static OutputBuffer getCurrentOutput(Context cx) {
+        return (OutputBuffer) cx.getThreadLocal(OUTPUT_KEY);
+    }
+
+    private OutputBuffer createOutputBuffer(ScriptContext ctxt) {
+        int capacity = OutputBuffer.DEFAULT_CAPACITY;
+        Object size = ctxt.getAttribute(PRINT_BUFFER_SIZE);
+        if (size instanceof Number) {
+            capacity = ((Number) size).intValue();
+        } else if (size != null) {
+            capacity = Integer.parseInt(size.toString());
+        }
+
+        Object stream = ctxt.getAttribute(PRINT_STREAM);
+        if (stream instanceof WritableByteChannel) {
+            stream = Channels.newOutputStream((WritableByteChannel) stream);
+        }
+        if (stream instanceof OutputStream) {
+            Object encoding = ctxt.getAttribute(PRINT_ENCODING);
+            try {
+                return new OutputBuffer((OutputStream) stream,
+                        encoding == null ? "UTF-8" : encoding.toString(),
+                        capacity);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+        return new OutputBuffer(ctxt.getWriter(), capacity);
+    }
     
     
     //Compilable methods
     public CompiledScript compile(String script) throws ScriptException {
-        return compile(preProcessScriptSource(new StringReader(script)));
+        // compile(Reader) takes care of preprocessing
+        return compile(new StringReader(script));
     }
     
     public CompiledScript compile(java.io.Reader script) throws ScriptException {
         CompiledScript ret = null;
         Context cx = enterContext();
+        Scriptable scope = null;
+        boolean completed = false;
         
         try {
             String filename = (String) get(ScriptEngine.FILENAME);
@@ -379,14 +492,18 @@ public class RhinoScriptEngine extends AbstractScriptEngine
                 filename = "<Unknown Source>";
             }
             
-            Scriptable scope = getRuntimeScope(context);
-            Script scr = cx.compileReader(scope, preProcessScriptSource(script), filename, 1, null);
-            ret = new RhinoCompiledScript(this, scr);
+            scope = getRuntimeScope(context);
+            ret = compile(cx, preProcessScriptSource(script), filename, null);
+            completed = true;
         } catch (Exception e) {
             if (DEBUG) e.printStackTrace();
             throw new ScriptException(e);
         } finally {
-            cx.exit();
+            try {
+                releaseRuntimeScope(scope, completed);
+            } finally {
+                cx.exit();
+            }
         }
         return ret;
     }
@@ -394,12 +511,112 @@ public class RhinoScriptEngine extends AbstractScriptEngine
     
     //package-private helpers
 
+    // NOTE (RRC) - why does it look straight into the engine instead of asking
+    // the given ScriptContext object?
+    // Modified to use the context
+    String getFilename(ScriptContext ctxt) {
+        String filename = null;
+        if (ctxt != null && ctxt.getBindings(ScriptContext.ENGINE_SCOPE) != null) {
+            filename = (String) ctxt.getBindings(ScriptContext.ENGINE_SCOPE).get(ScriptEngine.FILENAME);
+        }
+        if (filename == null) {
+            filename = (String) get(ScriptEngine.FILENAME);
+        }
+        return filename;
+    }
+
+    /*
+     * Preprocesses and compiles the given source without running it.
+     * Syntax errors are reported the same way eval reports them.
+     */
+    RhinoCompiledScript compileScript(Reader reader, String filename)
+    throws ScriptException {
+        return compileScript(preProcessScriptSource(reader), filename, null);
+    }
+
+    /*
+     * Compiles already preprocessed source. The optional statics object
+     * must have the top level scope as its prototype.
+     */
+    RhinoCompiledScript compileScript(Reader source, String filename,
+            Scriptable statics) throws ScriptException {
+        Context cx = enterContext();
+        try {
+            filename = filename == null ? "<Unknown source>" : filename;
+            return compile(cx, source, filename, statics);
+        } catch (RhinoException re) {
+            if (DEBUG) re.printStackTrace();
+            int line = (line = re.lineNumber()) == 0 ? -1 : line;
+            throw new ExtendedScriptException(re, re.toString(), re.sourceName(), line);
+        } catch (IOException ee) {
+            throw new ScriptException(ee);
+        } finally {
+            cx.exit();
+        }
+    }
+
+    /*
+     * Parses and compiles the source as Context.compileReader does, but
+     * finds the script's free variables in between, before the compiler
+     * rewrites the tree.
+     */
+    private RhinoCompiledScript compile(Context cx, Reader source, String filename,
+            Scriptable statics) throws IOException {
+        CompilerEnvirons env = new CompilerEnvirons();
+        env.initFromContext(cx);
+        Parser parser = new Parser(env, env.getErrorReporter());
+        if (cx.getDebugger() != null) {
+            // let Context compile it, which tells the debugger about it
+            StringBuilder text = new StringBuilder();
+            char[] buf = new char[8192];
+            for (int n; (n = source.read(buf)) > 0;) {
+                text.append(buf, 0, n);
+            }
+            String[] names = FreeVariables.find(parser.parse(text.toString(), filename, 1));
+            Script scr = cx.compileString(text.toString(), filename, 1, null);
+            return new RhinoCompiledScript(this, scr, statics, names);
+        }
+        ScriptOrFnNode tree = parser.parse(source, filename, 1);
+        String[] names = FreeVariables.find(tree);
+        Evaluator compiler = cx.getOptimizationLevel() < 0 ? new Interpreter() : new Codegen();
+        Object bytecode = compiler.compile(env, tree, parser.getEncodedSource(), false);
+        return new RhinoCompiledScript(this, compiler.createScriptObject(bytecode, null),
+                                       statics, names);
+    }
+
+    /**
+     * Records the engine scope bindings and the indexed properties kept
+     * alongside them. The standard objects in the top level scope are
+     * not recorded, so changes a script makes to them, such as to
+     * <code>Object.prototype</code>, are not undone by {@link #restore}.
+     */
+    public void snapshot() {
+        savedBindings = new BindingsSnapshot(getBindings(ScriptContext.ENGINE_SCOPE));
+        savedIndexedProps = new HashMap(indexedProps);
+    }
+
+    public void restore() {
+        if (savedBindings == null) {
+            return;
+        }
+        setBindings(savedBindings.restore(), ScriptContext.ENGINE_SCOPE);
+        // scripts rarely use indexed properties, so the map usually still
+        // matches the snapshot (mostly both empty) and need not be copied
+        if (!indexedProps.equals(savedIndexedProps)) {
+            indexedProps = new HashMap(savedIndexedProps);
+        }
+    }
+
     static Context enterContext() {
         // call this always so that initializer of this class runs
         // and initializes custom wrap factory and class shutter.
         return Context.enter();
     }
 
+    Scriptable getTopLevel() {
+        return topLevel;
+    }
+
     void setEngineFactory(ScriptEngineFactory fac) {
         factory = fac;
     }
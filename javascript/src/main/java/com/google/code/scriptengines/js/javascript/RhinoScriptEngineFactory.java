@@ -33,7 +33,7 @@ import javax.script.ScriptEngine;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.ContextFactory;
 
-import com.google.code.scriptengines.js.util.ScriptEngineFactoryBase;
+import com.google.code.scriptengines.core.ScriptEngineFactoryBase;
 
 /**
  * Factory to create RhinoScriptEngine
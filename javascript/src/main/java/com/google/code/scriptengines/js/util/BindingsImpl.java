@@ -23,65 +23,10 @@
  */
 package com.google.code.scriptengines.js.util;
 
-import java.util.Map;
-import java.util.Set;
-
-import javax.script.Bindings;
-
-/*
- * Abstract super class for Bindings implementations. Handles
- * global and local scopes.
- *
- * @author Mike Grogan
- * @version 1.0
- * @since 1.6
+/**
+ * @deprecated moved to the core module; use
+ * {@link com.google.code.scriptengines.core.BindingsImpl}.
  */
-public abstract class BindingsImpl extends BindingsBase {
-    
-    //get method delegates to global if key is not defined in
-    //base class or local scope
-    protected Bindings global = null;
-    
-    //get delegates to local scope
-    protected Bindings local = null;
-    
-    public void setGlobal(Bindings n) {
-        global = n;
-    }
-    
-    public void setLocal(Bindings n) {
-        local = n;
-    }
-    
-    public  Set<Map.Entry<String, Object>> entrySet() {
-        return new BindingsEntrySet(this);
-    }
-    
-    public Object get(Object key) {
-        checkKey(key);
-        
-        Object ret  = null;
-        if ((local != null) && (null != (ret = local.get(key)))) {
-            return ret;
-        }
-        
-        ret = getImpl((String)key);
-        
-        if (ret != null) {
-            return ret;
-        } else if (global != null) {
-            return global.get(key);
-        } else {
-            return null;
-        }
-    }
-    
-    public Object remove(Object key) {
-        checkKey(key);
-        Object ret = get(key);
-        if (ret != null) {
-            removeImpl((String)key);
-        }
-        return ret;
-    }
+@Deprecated
+public abstract class BindingsImpl extends com.google.code.scriptengines.core.BindingsImpl {
 }
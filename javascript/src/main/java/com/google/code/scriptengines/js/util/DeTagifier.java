@@ -23,10 +23,18 @@
  */
 package com.google.code.scriptengines.js.util;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /*
  * DeTagifier.java
@@ -48,12 +56,23 @@ public class DeTagifier {
     public static final int INSIDE_END_TAG = 6;
     public static final int INSIDE_CODE_EXPR_BLOCK = 7;
     public static final int INSIDE_EXPR_END_TAG = 8;
+    public static final int IN_DIRECTIVE = 9;
     public static final int INVALID_STATE = -1;
 
+    private static final Pattern INCLUDE_DIRECTIVE = Pattern.compile(
+            "\\s*include\\s+file\\s*=\\s*([\"'])(.*?)\\1\\s*", Pattern.DOTALL);
+
     private String outputStart;
     private String outputEnd;
     private String exprStart;
     private String exprEnd;
+
+    private String literalStart;
+    private String literalEnd;
+    private int minPooledLength;
+
+    private String includeStart;
+    private String includeEnd;
         
     public DeTagifier(String outputStart, String outputEnd, String exprStart, String exprEnd) {
         this.outputStart = outputStart;
@@ -61,29 +80,188 @@ public class DeTagifier {
         this.exprStart = exprStart;
         this.exprEnd = exprEnd;
     }
+
+    /**
+     * Configures how literal text is emitted when a literal pool is passed
+     * to {@link #parse(Reader, List)}. Literal runs of at least
+     * <code>minLength</code> characters are added to the pool and replaced
+     * by <code>literalStart + index + literalEnd</code>; shorter runs are
+     * still inlined as string literals.
+     */
+    public void setLiteralPool(String literalStart, String literalEnd, int minLength) {
+        this.literalStart = literalStart;
+        this.literalEnd = literalEnd;
+        this.minPooledLength = minLength;
+    }
     
+    /**
+     * Enables the <code>&lt;%@ include file="path" %&gt;</code> directive.
+     * The directive is replaced by <code>includeStart</code>, the path as
+     * a string literal and <code>includeEnd</code>; resolving and running
+     * the included template is up to the generated code. Without this
+     * call the directive is passed through as code.
+     */
+    public void setInclude(String includeStart, String includeEnd) {
+        this.includeStart = includeStart;
+        this.includeEnd = includeEnd;
+    }
+
     public String parse(Reader reader) throws IOException {
-        CharHolder charHolder = new DeTagifier.CharHolder();
-        int i = 0;
-        int state = START;
-        while (-1 != (i = reader.read())) {
-            //ignore control-M
-            if (i == (int)'\r') {
-                continue;
+        return parse(reader, null);
+    }
+
+    /**
+     * Converts a template into a script. Each run of literal text, newlines
+     * included, becomes a single output statement. The generated code keeps
+     * one line per template line so that error line numbers still match,
+     * provided the statement ends given to the constructor and setters
+     * have no newlines; newlines in them are taken back from the
+     * template's next literal newlines. The reader is drained in blocks
+     * before parsing.
+     *
+     * @param literals receives the pooled literal runs, may be null
+     */
+    public String parse(Reader reader, List<String> literals) throws IOException {
+        char[] buf = new char[8192];
+        int length = 0;
+        int n;
+        while (-1 != (n = reader.read(buf, length, buf.length - length))) {
+            length += n;
+            if (length == buf.length) {
+                char[] newBuf = new char[2 * buf.length];
+                System.arraycopy(buf, 0, newBuf, 0, length);
+                buf = newBuf;
             }
-            
-            state = processChar(state, (char)i, charHolder);
-            if (state == INVALID_STATE) {
-                return null;
+        }
+        return parse(CharBuffer.wrap(buf, 0, length), literals);
+    }
+
+    /**
+     * Returns a Reader over the script generated from the given template.
+     * The template is read and converted one block at a time as the
+     * returned reader is consumed, so neither the template nor the
+     * generated script is held in memory as a whole; only pooled literal
+     * runs are kept, since the script needs them when it runs. The output
+     * is the same as that of {@link #parse(Reader, List)}, and
+     * <code>literals</code> is complete once the reader is exhausted.
+     *
+     * @param literals receives the pooled literal runs, may be null
+     */
+    public Reader open(Reader template, List<String> literals) {
+        return new ScriptReader(template, literalStart != null ? literals : null);
+    }
+
+    /**
+     * Parses a template file. The file is read whole and decoded in one
+     * pass instead of being read through a Reader. It is not mapped: a
+     * mapping cannot be released before it is garbage collected, and
+     * until then some platforms keep the file from being replaced.
+     */
+    public String parse(File file, String encoding, List<String> literals)
+            throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("template too large: " + file);
+            }
+            ByteBuffer bytes = ByteBuffer.allocate((int) size);
+            while (bytes.hasRemaining() && channel.read(bytes) != -1) {
+                // a read may stop short of the end
             }
+            bytes.flip();
+            return parse(Charset.forName(encoding).decode(bytes), literals);
+        } finally {
+            in.close();
         }
-        if (state == IN_OUTPUTBLOCK) {
-            charHolder.put(outputEnd);
+    }
+
+    /**
+     * Parses the remaining content of the given buffer. Instead of going
+     * through {@link #processChar} for every character, the parser searches
+     * for the next <code>&lt;%</code> or <code>%&gt;</code> and copies the
+     * text in between as a whole.
+     */
+    public String parse(CharBuffer input, List<String> literals) {
+        char[] buf;
+        int pos;
+        int end;
+        if (input.hasArray()) {
+            buf = input.array();
+            pos = input.arrayOffset() + input.position();
+            end = input.arrayOffset() + input.limit();
+        } else {
+            buf = new char[input.remaining()];
+            input.duplicate().get(buf);
+            pos = 0;
+            end = buf.length;
+        }
+
+        //ignore control-M
+        int cr = indexOf(buf, pos, end, '\r');
+        if (cr != -1) {
+            char[] stripped = new char[end - pos];
+            int length = 0;
+            for (int i = pos; i < end; i++) {
+                if (buf[i] != '\r') {
+                    stripped[length++] = buf[i];
+                }
+            }
+            buf = stripped;
+            pos = 0;
+            end = length;
+        }
+
+        CharHolder charHolder = new CharHolder(end - pos + (end - pos) / 4 + 64);
+        charHolder.literals = literalStart != null ? literals : null;
+        while (pos < end) {
+            int tag = indexOf(buf, pos, end, '<', '%');
+            emitLiteral(charHolder, buf, pos, tag == -1 ? end : tag);
+            if (tag == -1) {
+                break;
+            }
+
+            pos = tag + 2;
+            if (includeStart != null && pos < end && buf[pos] == '@') {
+                int close = indexOf(buf, pos + 1, end, '%', '>');
+                if (close != -1) {
+                    emitDirective(charHolder, new String(buf, pos + 1, close - pos - 1));
+                    pos = close + 2;
+                    continue;
+                }
+            }
+            boolean expr = pos < end && buf[pos] == '=';
+            if (expr) {
+                charHolder.put(exprStart);
+                pos++;
+            }
+            // as in processChar, the character right after "<%" always
+            // belongs to the code block
+            int scan = expr ? pos : Math.min(pos + 1, end);
+            int close = indexOf(buf, scan, end, '%', '>');
+            if (close == -1) {
+                // an unterminated block loses a trailing '%', like processChar
+                int last = end > scan && buf[end - 1] == '%' ? end - 1 : end;
+                charHolder.put(buf, pos, last - pos);
+                break;
+            }
+            charHolder.put(buf, pos, close - pos);
+            if (expr) {
+                putEnd(charHolder, exprEnd);
+            }
+            pos = close + 2;
         }
-        
         return charHolder.getString();
     }
     
+    /**
+     * Converts one character of a template, starting in state
+     * <code>START</code>, and returns the next state. Literal text is
+     * collected in the holder and written out when the next tag starts,
+     * so {@link #finish} must be called after the last character. Include
+     * directives and the literal pool are left to {@link #parse(Reader)}.
+     */
     public int processChar(int state, char c, CharHolder charHolder)
                 throws IOException {
                     
@@ -92,8 +270,7 @@ public class DeTagifier {
                  if (c == '<') {
                      return INSIDE_INITIAL_START_TAG;
                  } else {
-                     charHolder.put(outputStart);
-                     charHolder.put(c);
+                     charHolder.putLiteral(c);
                      return IN_OUTPUTBLOCK;
                  }
              case IN_CODEBLOCK:
@@ -106,18 +283,8 @@ public class DeTagifier {
              case IN_OUTPUTBLOCK:
                  if (c == '<') {
                      return INSIDE_START_TAG;
-                 } else if (c == '\n') {
-                     charHolder.put('\\');
-                     charHolder.put('n');
-                     charHolder.put(outputEnd);
-                     charHolder.put(outputStart);
-                     return IN_OUTPUTBLOCK;
-                 } else if (c == '"') {
-                     charHolder.put('\\');
-                     charHolder.put(c);
-                     return IN_OUTPUTBLOCK;
                  } else {
-                     charHolder.put(c);
+                     charHolder.putLiteral(c);
                      return IN_OUTPUTBLOCK;
                  }
              case IN_EXPRBLOCK:
@@ -131,26 +298,18 @@ public class DeTagifier {
              case INSIDE_INITIAL_START_TAG:
              case INSIDE_START_TAG:
                  if (c == '%') {
-                     if (state == INSIDE_START_TAG) {
-                         charHolder.put(outputEnd);
-                     }
+                     endLiteral(charHolder);
                      return INSIDE_CODE_EXPR_BLOCK;
                  } else {
-                     if (state == INSIDE_INITIAL_START_TAG) {
-                        charHolder.put(outputStart);
-                     }
-                     charHolder.put('<');
-                     charHolder.put(c);
-                     return IN_OUTPUTBLOCK;
+                     charHolder.putLiteral('<');
+                     return processChar(IN_OUTPUTBLOCK, c, charHolder);
                  }
              case INSIDE_END_TAG:
                  if (c == '>') {
-                     charHolder.put(outputStart);
                      return IN_OUTPUTBLOCK;
                  } else {
                      charHolder.put('%');
-                     charHolder.put(c);
-                     return IN_CODEBLOCK;
+                     return processChar(IN_CODEBLOCK, c, charHolder);
                  }
              case INSIDE_CODE_EXPR_BLOCK:
                  if (c == '=') {
@@ -162,19 +321,181 @@ public class DeTagifier {
                  }             
              case INSIDE_EXPR_END_TAG:
                  if (c == '>') {
-                     charHolder.put(exprEnd);
-                     charHolder.put(outputStart);
+                     putEnd(charHolder, exprEnd);
                      return IN_OUTPUTBLOCK;
                  } else {
                      charHolder.put('%');
-                     charHolder.put(c);
-                     return IN_EXPRBLOCK;
+                     return processChar(IN_EXPRBLOCK, c, charHolder);
                  }
          }
          return INVALID_STATE;
   
     }
-    
+
+    /**
+     * Ends a conversion done with {@link #processChar}, given the last
+     * state it returned: writes out the literal text after the last tag.
+     * The holder then contains the same script as {@link #parse(Reader)}
+     * returns for a template without include directives.
+     */
+    public void finish(int state, CharHolder charHolder) {
+        if (state == INSIDE_START_TAG || state == INSIDE_INITIAL_START_TAG) {
+            charHolder.putLiteral('<');
+        }
+        endLiteral(charHolder);
+    }
+
+    /*
+     * Emits the pending literal run collected by processChar.
+     */
+    private void endLiteral(CharHolder charHolder) {
+        StringBuilder literal = charHolder.literal;
+        char[] buf = new char[literal.length()];
+        literal.getChars(0, buf.length, buf, 0);
+        literal.setLength(0);
+        emitLiteral(charHolder, buf, 0, buf.length);
+    }
+
+    /*
+     * Emits a run of literal text as one output statement, followed by
+     * the newlines it spanned that the generated code does not already
+     * have; see settle.
+     */
+    private void emitLiteral(CharHolder charHolder, char[] buf, int from, int to) {
+        int newlines = 0;
+        if (from < to) {
+            List<String> literals = charHolder.literals;
+            if (literals != null && to - from >= minPooledLength) {
+                for (int i = from; i < to; i++) {
+                    if (buf[i] == '\n') {
+                        newlines++;
+                    }
+                }
+                charHolder.put(literalStart);
+                charHolder.put(Integer.toString(literals.size()));
+                putEnd(charHolder, literalEnd);
+                literals.add(new String(buf, from, to - from));
+            } else {
+                charHolder.put(outputStart);
+                newlines = putEscaped(buf, from, to, charHolder);
+                putEnd(charHolder, outputEnd);
+            }
+        }
+        for (newlines = settle(charHolder, newlines); newlines > 0; newlines--) {
+            charHolder.put('\n');
+        }
+    }
+
+    /*
+     * Emits the body of a <%@ ... %> tag. Anything but an include is left
+     * to the script compiler, as it was before directives existed.
+     */
+    private void emitDirective(CharHolder charHolder, String directive) {
+        Matcher m = INCLUDE_DIRECTIVE.matcher(directive);
+        if (!m.matches()) {
+            charHolder.put('@');
+            charHolder.put(directive);
+            return;
+        }
+        char[] path = m.group(2).toCharArray();
+        charHolder.put(includeStart);
+        charHolder.put('"');
+        putEscaped(path, 0, path.length, charHolder);
+        charHolder.put('"');
+        putEnd(charHolder, includeEnd);
+        int newlines = settle(charHolder, countNewlines(directive));
+        for (; newlines > 0; newlines--) {
+            charHolder.put('\n');
+        }
+    }
+
+    /*
+     * Copies a literal run as the body of a string literal. Plain text
+     * between characters that need escaping is copied in bulk.
+     * Returns the number of newlines in the run.
+     */
+    private static int putEscaped(char[] buf, int from, int to, CharHolder charHolder) {
+        int newlines = 0;
+        int start = from;
+        for (int i = from; i < to; i++) {
+            String escape;
+            switch (buf[i]) {
+                case '\n':
+                    newlines++;
+                    escape = "\\n";
+                    break;
+                case '"':
+                    escape = "\\\"";
+                    break;
+                case '\\':
+                    escape = "\\\\";
+                    break;
+                case '\u2028':
+                    escape = "\\u2028";
+                    break;
+                case '\u2029':
+                    escape = "\\u2029";
+                    break;
+                default:
+                    continue;
+            }
+            charHolder.put(buf, start, i - start);
+            charHolder.put(escape);
+            start = i + 1;
+        }
+        charHolder.put(buf, start, to - start);
+        return newlines;
+    }
+
+    /*
+     * Puts the end of a generated statement. Newlines in it are not in
+     * the template, so they are counted as surplus, to be taken back from
+     * the template's next newlines.
+     */
+    private static void putEnd(CharHolder charHolder, String end) {
+        charHolder.put(end);
+        charHolder.surplus += countNewlines(end);
+    }
+
+    /*
+     * Returns how many of the given template newlines are still to be
+     * emitted once the surplus has been taken from them. Code after a
+     * statement end with a newline, such as an expression followed by
+     * more code on the same line, stays one line low until the template
+     * next moves to a new line.
+     */
+    private static int settle(CharHolder charHolder, int newlines) {
+        int taken = Math.min(newlines, charHolder.surplus);
+        charHolder.surplus -= taken;
+        return newlines - taken;
+    }
+
+    private static int countNewlines(String s) {
+        int count = 0;
+        for (int i = s.indexOf('\n'); i != -1; i = s.indexOf('\n', i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    private static int indexOf(char[] buf, int from, int to, char c) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(char[] buf, int from, int to, char first, char second) {
+        for (int i = from, last = to - 1; i < last; i++) {
+            if (buf[i] == first && buf[i + 1] == second) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     public static void main(String[] args) throws Exception {
         if (args.length == 5) {
             Reader reader = new InputStreamReader(new FileInputStream(args[0]));
@@ -187,28 +508,272 @@ public class DeTagifier {
         }
     }
     
+    /*
+     * Incremental form of parse(CharBuffer, List). A tag split across two
+     * blocks is handled by keeping a trailing '<' or '%' in the window
+     * until the next block is read.
+     */
+    private class ScriptReader extends Reader {
+        private final Reader in;
+        private final List<String> literals;
+        private final char[] window = new char[8192];
+        private int pos;
+        private int end;
+        private boolean eof;
+        private boolean done;
+        private int state = IN_OUTPUTBLOCK;
+
+        private final CharHolder out = new CharHolder(2 * window.length);
+        private int outPos;
+
+        // inline literal run in progress, when there is no literal pool
+        private boolean inRun;
+        private int runNewlines;
+        private int pendingNewlines;
+
+        private final StringBuilder directive = new StringBuilder();
+
+        ScriptReader(Reader in, List<String> literals) {
+            this.in = in;
+            this.literals = literals;
+            out.literals = literals;
+        }
+
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (outPos == out.current && !produce()) {
+                return -1;
+            }
+            int n = Math.min(len, out.current - outPos);
+            System.arraycopy(out.chars, outPos, cbuf, off, n);
+            outPos += n;
+            return n;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+
+        /*
+         * Refills the output holder. Returns false at the end of the script.
+         */
+        private boolean produce() throws IOException {
+            out.current = 0;
+            outPos = 0;
+            while (out.current == 0) {
+                if (pendingNewlines > 0) {
+                    int n = Math.min(pendingNewlines, window.length);
+                    for (int i = 0; i < n; i++) {
+                        out.put('\n');
+                    }
+                    pendingNewlines -= n;
+                    break;
+                }
+                if (done) {
+                    return false;
+                }
+                boolean more = true;
+                while (more && pendingNewlines == 0) {
+                    more = advance();
+                }
+                if (!more) {
+                    if (eof) {
+                        if (state == IN_OUTPUTBLOCK) {
+                            endRun();
+                        }
+                        done = true;
+                    } else {
+                        fill();
+                    }
+                }
+            }
+            return true;
+        }
+
+        /*
+         * Handles the next piece of the window. Returns false when more
+         * input is needed.
+         */
+        private boolean advance() {
+            switch (state) {
+                case IN_OUTPUTBLOCK: {
+                    int tag = indexOf(window, pos, end, '<', '%');
+                    if (tag == -1) {
+                        int limit = !eof && end > pos && window[end - 1] == '<' ? end - 1 : end;
+                        literal(pos, limit);
+                        pos = limit;
+                        return false;
+                    }
+                    literal(pos, tag);
+                    endRun();
+                    pos = tag + 2;
+                    state = INSIDE_CODE_EXPR_BLOCK;
+                    return true;
+                }
+                case INSIDE_CODE_EXPR_BLOCK:
+                    // the character right after "<%" always belongs to code
+                    if (pos == end) {
+                        return false;
+                    }
+                    if (window[pos] == '=') {
+                        out.put(exprStart);
+                        state = IN_EXPRBLOCK;
+                    } else if (window[pos] == '@' && includeStart != null) {
+                        directive.setLength(0);
+                        state = IN_DIRECTIVE;
+                    } else {
+                        out.put(window[pos]);
+                        state = IN_CODEBLOCK;
+                    }
+                    pos++;
+                    return true;
+                case IN_DIRECTIVE: {
+                    int close = indexOf(window, pos, end, '%', '>');
+                    if (close == -1) {
+                        int limit = end > pos && window[end - 1] == '%' ? end - 1 : end;
+                        directive.append(window, pos, limit - pos);
+                        pos = limit;
+                        if (eof) {
+                            // unterminated, so it is just code
+                            out.put('@');
+                            out.put(directive.toString());
+                            state = IN_CODEBLOCK;
+                            return true;
+                        }
+                        return false;
+                    }
+                    directive.append(window, pos, close - pos);
+                    emitDirective(out, directive.toString());
+                    pos = close + 2;
+                    state = IN_OUTPUTBLOCK;
+                    return true;
+                }
+                default: {
+                    int close = indexOf(window, pos, end, '%', '>');
+                    if (close == -1) {
+                        // an unterminated block loses a trailing '%'
+                        int limit = end > pos && window[end - 1] == '%' ? end - 1 : end;
+                        out.put(window, pos, limit - pos);
+                        pos = eof ? end : limit;
+                        return false;
+                    }
+                    out.put(window, pos, close - pos);
+                    if (state == IN_EXPRBLOCK) {
+                        putEnd(out, exprEnd);
+                    }
+                    pos = close + 2;
+                    state = IN_OUTPUTBLOCK;
+                    return true;
+                }
+            }
+        }
+
+        private void literal(int from, int to) {
+            if (from == to) {
+                return;
+            }
+            if (literals != null) {
+                out.literal.append(window, from, to - from);
+            } else {
+                if (!inRun) {
+                    out.put(outputStart);
+                    inRun = true;
+                }
+                runNewlines += putEscaped(window, from, to, out);
+            }
+        }
+
+        private void endRun() {
+            if (literals != null) {
+                endLiteral(out);
+            } else if (inRun) {
+                putEnd(out, outputEnd);
+                pendingNewlines = settle(out, runNewlines);
+                runNewlines = 0;
+                inRun = false;
+            }
+        }
+
+        /*
+         * Moves the unprocessed rest of the window to the front and reads
+         * at least one more character, dropping control-M.
+         */
+        private void fill() throws IOException {
+            System.arraycopy(window, pos, window, 0, end - pos);
+            end -= pos;
+            pos = 0;
+            while (true) {
+                int n = in.read(window, end, window.length - end);
+                if (n == -1) {
+                    eof = true;
+                    return;
+                }
+                int length = end;
+                for (int i = end; i < end + n; i++) {
+                    if (window[i] != '\r') {
+                        window[length++] = window[i];
+                    }
+                }
+                if (length > end) {
+                    end = length;
+                    return;
+                }
+            }
+        }
+    }
+
     public class CharHolder {
-        private char[] chars = new char[1000];
+        private char[] chars;
         int current = 0;
-        int size = 1000;
+        int size;
+
+        // literal text seen since the last code block, emitted by endLiteral
+        private StringBuilder literal = new StringBuilder();
+        private List<String> literals;
+        // newlines put by statement ends and not yet taken back
+        private int surplus;
+
+        public void putLiteral(char c) {
+            literal.append(c);
+        }
         
+        public CharHolder() {
+            this(1000);
+        }
+
+        public CharHolder(int size) {
+            this.size = Math.max(size, 16);
+            chars = new char[this.size];
+        }
+
         public void put(char c) {
-            if (current == size - 1) {
-                char[] newChars = new char[2 * size];
-                for (int i = 0; i < size; i++) {
-                    newChars[i] = chars[i];
-                }
-                size *= 2;
-                chars = newChars;
+            if (current == size) {
+                ensureCapacity(1);
             }
-            
             chars[current++] = c;
         }
         
         public void put(String str) {
             int l = str.length();
-            for (int i = 0; i < l ; i++) {
-                put(str.charAt(i));
+            ensureCapacity(l);
+            str.getChars(0, l, chars, current);
+            current += l;
+        }
+
+        public void put(char[] src, int offset, int length) {
+            ensureCapacity(length);
+            System.arraycopy(src, offset, chars, current, length);
+            current += length;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (current + extra > size) {
+                size = Math.max(2 * size, current + extra);
+                char[] newChars = new char[size];
+                System.arraycopy(chars, 0, newChars, 0, current);
+                chars = newChars;
             }
         }
         
@@ -23,70 +23,16 @@
  */
 package com.google.code.scriptengines.js.util;
 
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
-
 import javax.script.Invocable;
-import javax.script.ScriptException;
 
-/*
- * java.lang.reflect.Proxy based interface implementor. This is meant
- * to be used to implement Invocable.getInterface.
- *
- * @version 1.0
- * @author Mike Grogan
- * @since 1.6
+/**
+ * @deprecated moved to the core module; use
+ * {@link com.google.code.scriptengines.core.InterfaceImplementor}.
  */
-public class InterfaceImplementor {
-    
-    private Invocable engine;
-    
-    /** Creates a new instance of Invocable */
-    public InterfaceImplementor(Invocable engine) {
-        this.engine = engine;
-    }
-    
-    public class InterfaceImplementorInvocationHandler implements InvocationHandler {
-        private Invocable engine;
-        private Object thiz;
-        public InterfaceImplementorInvocationHandler(Invocable engine, Object thiz) {
-            
-            this.engine = engine;
-            this.thiz = thiz;
-        }
-        
-        public Object invoke(Object proxy , Method method, Object[] args)
-        throws java.lang.Throwable {
-            // give chance to convert input args
-            args = convertArguments(method, args);
-            Object result = engine.invokeMethod(thiz, method.getName(), args);
-            // give chance to convert the method result
-            return convertResult(method, result);
-        }
-    }
-    
-    public <T> T getInterface(Object thiz, Class<T> iface)
-    throws ScriptException {
-        if (iface == null || !iface.isInterface()) {
-            throw new IllegalArgumentException("interface Class expected");
-        }
-        return iface.cast(Proxy.newProxyInstance(iface.getClassLoader(),
-                new Class[]{iface},
-                new InterfaceImplementorInvocationHandler(engine, thiz)));
-    }
+@Deprecated
+public class InterfaceImplementor extends com.google.code.scriptengines.core.InterfaceImplementor {
 
-    // called to convert method result after invoke
-    protected Object convertResult(Method method, Object res) 
-                                   throws ScriptException {
-        // default is identity conversion
-        return res;
-    }
-
-    // called to convert method arguments before invoke
-    protected Object[] convertArguments(Method method, Object[] args)
-                                      throws ScriptException {
-        // default is identity conversion
-        return args;
+    public InterfaceImplementor(Invocable engine) {
+        super(engine);
     }
 }
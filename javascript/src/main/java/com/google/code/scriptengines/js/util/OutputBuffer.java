@@ -0,0 +1,292 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.js.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Unsynchronized character buffer in front of a script's output writer.
+ * Characters are collected in a single array and handed to the target
+ * once the buffer is full or {@link #flush()} is called, so scripts that
+ * print line by line do not pay for a (usually auto-flushing) writer call
+ * per line.
+ * <p>
+ * The target may also be an <code>OutputStream</code>, in which case the
+ * buffer does its own encoding and accepts text that has been encoded
+ * ahead of time through {@link #write(String, byte[])}.
+ * <p>
+ * An instance is meant to be owned by a single evaluation. Once the
+ * evaluation is over, {@link #release()} drains the buffer and switches
+ * it to write-through mode, so code that still holds on to it (script
+ * functions invoked later) keeps producing output in order.
+ */
+public class OutputBuffer extends Writer {
+
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    private Writer out;
+    private final int capacity;
+    private char[] buf;
+    private int count;
+    private boolean released;
+
+    // set when writing to a stream
+    private OutputStream stream;
+    private Charset charset;
+    private CharsetEncoder encoder;
+    private ByteBuffer bytes;
+
+    public OutputBuffer(Writer out) {
+        this(out, DEFAULT_CAPACITY);
+    }
+
+    public OutputBuffer(Writer out, int capacity) {
+        if (out == null) {
+            throw new NullPointerException("writer is null");
+        }
+        this.out = out;
+        this.capacity = capacity > 0 ? capacity : DEFAULT_CAPACITY;
+    }
+
+    public OutputBuffer(OutputStream out, String encoding, int capacity)
+            throws UnsupportedEncodingException {
+        if (out == null) {
+            throw new NullPointerException("stream is null");
+        }
+        try {
+            charset = Charset.forName(encoding);
+        } catch (Exception e) {
+            throw new UnsupportedEncodingException("Unsupported: " + encoding);
+        }
+        this.stream = out;
+        this.capacity = capacity > 0 ? capacity : DEFAULT_CAPACITY;
+        encoder = charset.newEncoder();
+        encoder.onMalformedInput(CodingErrorAction.REPLACE);
+        encoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Returns the writer this buffer drains into, or null if it encodes
+     * into a stream.
+     */
+    public Writer getTarget() {
+        return out;
+    }
+
+    /**
+     * Returns the charset used to encode into the target stream, or null
+     * if this buffer drains into a writer.
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Drains pending output and redirects further output to the given
+     * writer.
+     */
+    public void setTarget(Writer target) throws IOException {
+        if (target == null) {
+            throw new NullPointerException("writer is null");
+        }
+        if (stream != null) {
+            drain(true);
+            drainBytes();
+            stream.flush();
+            stream = null;
+            charset = null;
+            encoder = null;
+            bytes = null;
+        } else {
+            drain(false);
+        }
+        out = target;
+    }
+
+    public void write(int c) throws IOException {
+        if (released && stream == null) {
+            out.write(c);
+            return;
+        }
+        if (buf == null) {
+            buf = new char[capacity];
+        } else if (count == buf.length) {
+            drain(false);
+        }
+        buf[count++] = (char) c;
+        if (released) {
+            flush();
+        }
+    }
+
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off > cbuf.length - len) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (stream == null && (released || len >= capacity)) {
+            drain(false);
+            out.write(cbuf, off, len);
+            return;
+        }
+        if (buf == null) {
+            buf = new char[capacity];
+        }
+        while (len > 0) {
+            if (count == buf.length) {
+                drain(false);
+            }
+            int n = Math.min(len, buf.length - count);
+            System.arraycopy(cbuf, off, buf, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+        if (released) {
+            flush();
+        }
+    }
+
+    public void write(String str, int off, int len) throws IOException {
+        if (stream == null && (released || len >= capacity)) {
+            drain(false);
+            out.write(str, off, len);
+            return;
+        }
+        if (buf == null) {
+            buf = new char[capacity];
+        }
+        while (len > 0) {
+            if (count == buf.length) {
+                drain(false);
+            }
+            int n = Math.min(len, buf.length - count);
+            str.getChars(off, off + n, buf, count);
+            count += n;
+            off += n;
+            len -= n;
+        }
+        if (released) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes text for which the caller already holds the encoded form in
+     * this buffer's charset (see {@link #getCharset()}). When writing to a
+     * stream the bytes are copied as they are; otherwise, or if no bytes
+     * are given, the text is written as usual.
+     */
+    public void write(String text, byte[] encoded) throws IOException {
+        if (stream == null || encoded == null) {
+            write(text);
+            return;
+        }
+        drain(false);
+        if (bytes == null) {
+            bytes = ByteBuffer.allocate(capacity);
+        }
+        if (encoded.length > bytes.remaining()) {
+            drainBytes();
+        }
+        if (encoded.length >= bytes.capacity()) {
+            stream.write(encoded);
+        } else {
+            bytes.put(encoded);
+        }
+        if (released) {
+            flush();
+        }
+    }
+
+    public void flush() throws IOException {
+        drain(false);
+        if (stream != null) {
+            drainBytes();
+            stream.flush();
+        } else {
+            out.flush();
+        }
+    }
+
+    /**
+     * Flushes the buffer and turns it into a write-through writer. Called
+     * when the evaluation owning the buffer has finished.
+     */
+    public void release() throws IOException {
+        if (stream != null) {
+            drain(true);
+        }
+        flush();
+        released = true;
+        if (stream == null) {
+            buf = null;
+        }
+    }
+
+    /**
+     * Closing only releases the buffer, the target belongs to the
+     * ScriptContext and stays open.
+     */
+    public void close() throws IOException {
+        release();
+    }
+
+    private void drain(boolean endOfInput) throws IOException {
+        if (stream == null) {
+            if (count > 0) {
+                out.write(buf, 0, count);
+                count = 0;
+            }
+            return;
+        }
+
+        if (bytes == null) {
+            bytes = ByteBuffer.allocate(capacity);
+        }
+        CharBuffer chars = CharBuffer.wrap(buf == null ? new char[0] : buf, 0, count);
+        while (encoder.encode(chars, bytes, endOfInput).isOverflow()) {
+            drainBytes();
+        }
+        if (endOfInput) {
+            while (encoder.flush(bytes).isOverflow()) {
+                drainBytes();
+            }
+            encoder.reset();
+        }
+        // an unpaired high surrogate stays behind until its partner arrives
+        int left = chars.remaining();
+        if (left > 0) {
+            System.arraycopy(buf, chars.position(), buf, 0, left);
+        }
+        count = left;
+    }
+
+    private void drainBytes() throws IOException {
+        if (bytes != null && bytes.position() > 0) {
+            stream.write(bytes.array(), 0, bytes.position());
+            bytes.clear();
+        }
+    }
+}
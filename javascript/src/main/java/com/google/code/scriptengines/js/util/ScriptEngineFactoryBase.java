@@ -23,35 +23,11 @@
  */
 package com.google.code.scriptengines.js.util;
 
-import javax.script.ScriptEngine;
-import javax.script.ScriptEngineFactory;
-
-/*
- * Abstract super class for factory implementations.
- *
- * @version 1.0
- * @author Mike Grogan
- * @since 1.6
+/**
+ * @deprecated moved to the core module; use
+ * {@link com.google.code.scriptengines.core.ScriptEngineFactoryBase}.
  */
-public abstract class ScriptEngineFactoryBase implements ScriptEngineFactory {
-    
-    public String getName() {
-        return (String)getParameter(ScriptEngine.NAME);
-    }
-    
-    public String getEngineName() {
-        return (String)getParameter(ScriptEngine.ENGINE);
-    }
-    
-    public String getEngineVersion() {
-        return (String)getParameter(ScriptEngine.ENGINE_VERSION);
-    }
-    
-    public String getLanguageName() {
-        return (String)getParameter(ScriptEngine.LANGUAGE);
-    }
-    
-    public String getLanguageVersion() {
-        return (String)getParameter(ScriptEngine.LANGUAGE_VERSION);
-    }
+@Deprecated
+public abstract class ScriptEngineFactoryBase
+        extends com.google.code.scriptengines.core.ScriptEngineFactoryBase {
 }
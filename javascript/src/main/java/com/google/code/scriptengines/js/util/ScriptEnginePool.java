@@ -23,95 +23,34 @@
  */
 package com.google.code.scriptengines.js.util;
 
-import java.util.LinkedList;
-
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineFactory;
 
 /**
- * Simple pool of script engines with configurable size and ScriptEngine type.
- * Used by HttpScriptServlets to prevent concurrent executions of scripts on 
- * multiple threads.
+ * @deprecated moved to the core module; use
+ * {@link com.google.code.scriptengines.core.ScriptEnginePool}.
  */
-public class ScriptEnginePool {
-    
-    private static final int DEFAULT_CAPACITY = 10;
-    private int capacity;
-    private int size;
-    private LinkedList pool;
-    private ScriptEngineFactory fact;
-    private boolean multiThreaded;
-    
+@Deprecated
+public class ScriptEnginePool extends com.google.code.scriptengines.core.ScriptEnginePool {
+
+    public ScriptEnginePool(ScriptEngineFactory fact, int capacity, boolean fair,
+                            boolean threadAffine) {
+        super(fact, capacity, fair, threadAffine);
+    }
+
+    public ScriptEnginePool(ScriptEngineFactory fact, int capacity, boolean fair) {
+        super(fact, capacity, fair);
+    }
+
     public ScriptEnginePool(ScriptEngineFactory fact, int capacity) {
-        
-        pool = new LinkedList();
-        this.capacity = capacity;
-        this.fact = fact;
-        this.size = 0;
-        String value = (String)fact.getParameter("THREADING");
-        if (value.equals("THREAD-ISOLATED") || value.equals("STATELESS")) {
-            multiThreaded = true;
-            //just use a single engine
-            capacity = 1;
-        } else {
-            multiThreaded = false;
-        }
+        super(fact, capacity);
     }
 
     public ScriptEnginePool(ScriptEngineFactory fact) {
-        this(fact, DEFAULT_CAPACITY);
+        super(fact);
     }
-    
+
     public ScriptEnginePool(ScriptEngineFactory fact, ScriptEngine eng) {
-        this(fact);
-        synchronized(this) {
-            pool.addLast(eng);
-        }
-    }
-    
-    public synchronized ScriptEngine checkOut() {
-        
-        if (pool.size() > 0) {
-            //there engines in pool awaiting reuse
-            if (multiThreaded) {
-                //always return first (only) engine.. do not remove
-                return (ScriptEngine)pool.getFirst();
-            } else {
-                return (ScriptEngine)pool.removeFirst();
-            }
-        } else if (size < capacity) {
-            //create a new engine
-            size++;
-            ScriptEngine ret = fact.getScriptEngine();
-            if (multiThreaded) {
-                //size and capacity are now both 1.  Add the engine to
-                //the pool for everyone to use. 
-                pool.add(ret);
-            }
-            return ret;
-        } else {
-            //won't get here in multiThreaded case
-            while (pool.size() == 0) {
-                try {
-                    wait();
-                } catch (InterruptedException e) {
-                }
-            }
-            return (ScriptEngine)pool.removeFirst();
-        }
-    }
-    
-    public synchronized void checkIn(ScriptEngine eng) {
-        
-        if (multiThreaded) {
-            //pool always contatins exactly one engine
-            return;
-        }
-        
-        pool.addLast(eng);
-        notify();
+        super(fact, eng);
     }
 }
-        
-    
-    
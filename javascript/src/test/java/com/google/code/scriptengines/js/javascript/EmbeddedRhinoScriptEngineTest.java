@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.js.javascript;
+
+import java.io.StringWriter;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+import junit.framework.TestCase;
+
+import com.google.code.scriptengines.core.LruScriptCache;
+import com.google.code.scriptengines.core.ScriptCache;
+
+public class EmbeddedRhinoScriptEngineTest extends TestCase {
+
+    private ScriptEngine engine;
+    private StringWriter out;
+
+    protected void setUp() {
+        engine = new EmbeddedRhinoScriptEngineFactory().getScriptEngine();
+        out = new StringWriter();
+        engine.getContext().setWriter(out);
+    }
+
+    private int errorLine(String template) {
+        try {
+            engine.eval(template);
+        } catch (ScriptException e) {
+            return e.getLineNumber();
+        }
+        fail("no error in " + template);
+        return 0;
+    }
+
+    private String errorFile(String template) {
+        try {
+            engine.eval(template);
+        } catch (ScriptException e) {
+            return e.getFileName();
+        }
+        fail("no error in " + template);
+        return null;
+    }
+
+    public void testOutput() throws ScriptException {
+        engine.put("name", "world");
+        engine.eval("<p>\nhello <%= name %>\n<% for (var i = 0; i < 2; i++) { %><%= 'x' + i %><% } %></p>");
+        assertEquals("<p>\nhello world\nx0x1</p>", out.toString());
+    }
+
+    public void testErrorLineAfterLiterals() {
+        assertEquals(4, errorLine("a\nb\nc\n<% null.x %>"));
+    }
+
+    public void testErrorLineAfterExpressions() {
+        assertEquals(4, errorLine("a\n<%= 1 %>\nb\n<% null.x %>"));
+        assertEquals(3, errorLine("<%= 1 %><%= 2 %>\n<%= 3 %>\n<% null.x %>"));
+        assertEquals(2, errorLine("<%= 1 %>\n<%= 2 %><% null.x %>"));
+    }
+
+    public void testErrorLineInMultiLineCode() {
+        assertEquals(3, errorLine("<p>\n<% var a = 1;\n null.x; %>\n</p>"));
+    }
+
+    public void testErrorFileNameOfCachedTemplate() {
+        String template = "a\n<% null.x %>";
+        engine.put(ScriptEngine.FILENAME, "first.ejs");
+        assertEquals("first.ejs", errorFile(template));
+        engine.put(ScriptEngine.FILENAME, "second.ejs");
+        assertEquals("second.ejs", errorFile(template));
+        engine.put(ScriptEngine.FILENAME, "first.ejs");
+        assertEquals("first.ejs", errorFile(template));
+    }
+
+    public void testSharedCacheHoldsNoOtherEnginesTemplates() throws ScriptException {
+        ScriptCache<CompiledScript> cache = new LruScriptCache<CompiledScript>();
+        EmbeddedRhinoScriptEngine a = new EmbeddedRhinoScriptEngine();
+        EmbeddedRhinoScriptEngine b = new EmbeddedRhinoScriptEngine();
+        a.setTemplateCache(cache);
+        b.setTemplateCache(cache);
+        String template = "<p><%= 'x' %></p>";
+        assertSame(a, a.compile(template).getEngine());
+        assertSame(b, b.compile(template).getEngine());
+        assertSame(a, a.compile(template).getEngine());
+    }
+}
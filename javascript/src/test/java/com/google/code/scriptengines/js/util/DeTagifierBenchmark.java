@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.js.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+/**
+ * Measures how long {@link DeTagifier} takes to convert a large template:
+ * one character at a time through {@link DeTagifier#processChar}, as the
+ * parser did before it scanned for tags in bulk, then with
+ * {@link DeTagifier#parse(Reader)} and
+ * {@link DeTagifier#parse(File, String, java.util.List)}. Run with
+ * <code>java DeTagifierBenchmark [rows]</code>; not run by the build.
+ */
+public class DeTagifierBenchmark {
+
+    private static final int ROUNDS = 5;
+    private static final int PARSES = 10;
+
+    public static void main(String[] args) throws IOException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        File file = File.createTempFile("detagifier", ".ejs");
+        file.deleteOnExit();
+        FileWriter writer = new FileWriter(file);
+        try {
+            for (int i = 0; i < rows; i++) {
+                writer.write("<tr><td class=\"x\">static text here " + i
+                        + "</td><td><%= row.get(" + i % 7 + ") %></td></tr>\n");
+            }
+        } finally {
+            writer.close();
+        }
+        System.out.println(file.length() + " bytes, " + PARSES + " parses per figure");
+
+        DeTagifier deTagifier = new DeTagifier("w(\"", "\");\n", "w(", ");\n");
+        // the figures compare the same work only if the results agree
+        if (!parseByChar(deTagifier, open(file)).equals(deTagifier.parse(file, "UTF-8", null))) {
+            throw new IllegalStateException("processChar and parse disagree");
+        }
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < PARSES; i++) {
+                parseByChar(deTagifier, open(file));
+            }
+            long byChar = System.nanoTime();
+            for (int i = 0; i < PARSES; i++) {
+                Reader reader = open(file);
+                try {
+                    deTagifier.parse(reader);
+                } finally {
+                    reader.close();
+                }
+            }
+            long bulk = System.nanoTime();
+            for (int i = 0; i < PARSES; i++) {
+                deTagifier.parse(file, "UTF-8", null);
+            }
+            long whole = System.nanoTime();
+            System.out.println("by char " + millis(byChar - start)
+                    + " ms, reader " + millis(bulk - byChar)
+                    + " ms, file " + millis(whole - bulk) + " ms");
+        }
+    }
+
+    private static Reader open(File file) throws IOException {
+        return new InputStreamReader(new FileInputStream(file), "UTF-8");
+    }
+
+    private static String parseByChar(DeTagifier deTagifier, Reader reader) throws IOException {
+        try {
+            DeTagifier.CharHolder charHolder = deTagifier.new CharHolder();
+            int state = DeTagifier.START;
+            for (int c; (c = reader.read()) != -1;) {
+                if (c != '\r') {
+                    state = deTagifier.processChar(state, (char) c, charHolder);
+                }
+            }
+            deTagifier.finish(state, charHolder);
+            return charHolder.getString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1000000;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.js.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the generated script keeps template lines on the same
+ * lines, so that script errors report template line numbers.
+ */
+public class DeTagifierTest extends TestCase {
+
+    // multi-line literal runs and code, with expressions naming the
+    // template line they are on
+    private static final String TEMPLATE =
+            "<html>\n<body>\n<%= line3 %>\n<p>\n  text\n</p><%= line6 %>\n"
+            + "\n\n<%= line9 %><%= line9b %>\n<%@ include\n file=\"x\" %>\n"
+            + "<% var a = 1;\n   var b = 2; %>\n<%= line14 %>\n</body>\n</html>\n";
+
+    private static final String[] ALL = {"line3", "line6", "line9", "line9b", "line14"};
+
+    // when statement ends have newlines, code after a literal run still
+    // starts on its template line as long as the run spans more lines
+    // than the statement ends before it added
+    private static final String[] FIRST = {"line3", "line6"};
+
+    /*
+     * Returns a DeTagifier whose statement ends have no newlines, as
+     * EmbeddedRhinoScriptEngine's, or one whose ends all have one.
+     */
+    private static DeTagifier deTagifier(boolean newlines, boolean pooled) {
+        String end = newlines ? ");\n" : ");";
+        DeTagifier d = new DeTagifier("w(\"", "\"" + end, "w(", end);
+        d.setInclude("include(", end);
+        if (pooled) {
+            d.setLiteralPool("literal(", end, 0);
+        }
+        return d;
+    }
+
+    private static String parse(DeTagifier d, boolean pooled) throws IOException {
+        return d.parse(new StringReader(TEMPLATE), pooled ? new ArrayList<String>() : null);
+    }
+
+    private static String stream(DeTagifier d, boolean pooled) throws IOException {
+        Reader reader = d.open(new StringReader(TEMPLATE), pooled ? new ArrayList<String>() : null);
+        StringBuilder sb = new StringBuilder();
+        char[] buf = new char[7];
+        for (int n; (n = reader.read(buf)) != -1;) {
+            sb.append(buf, 0, n);
+        }
+        return sb.toString();
+    }
+
+    private static void assertLines(String script, String[] names) {
+        String[] lines = script.split("\n", -1);
+        for (String name : names) {
+            int expected = Integer.parseInt(name.replaceAll("\\D", ""));
+            int actual = 0;
+            for (int i = 0; i < lines.length; i++) {
+                if (lines[i].indexOf(name + " ") != -1) {
+                    actual = i + 1;
+                }
+            }
+            assertEquals(name + " in\n" + script, expected, actual);
+        }
+        if (names == ALL) {
+            assertEquals(script, TEMPLATE.split("\n", -1).length, lines.length);
+        }
+    }
+
+    public void testInlineLiterals() throws IOException {
+        assertLines(parse(deTagifier(false, false), false), ALL);
+        assertLines(parse(deTagifier(true, false), false), FIRST);
+    }
+
+    public void testPooledLiterals() throws IOException {
+        List<String> literals = new ArrayList<String>();
+        deTagifier(false, true).parse(new StringReader(TEMPLATE), literals);
+        assertTrue(literals.contains("\n<p>\n  text\n</p>"));
+        assertLines(parse(deTagifier(false, true), true), ALL);
+        assertLines(parse(deTagifier(true, true), true), FIRST);
+    }
+
+    public void testStreamedInlineLiterals() throws IOException {
+        assertLines(stream(deTagifier(false, false), false), ALL);
+        assertLines(stream(deTagifier(true, false), false), FIRST);
+    }
+
+    public void testStreamedPooledLiterals() throws IOException {
+        assertLines(stream(deTagifier(false, true), true), ALL);
+        assertLines(stream(deTagifier(true, true), true), FIRST);
+    }
+
+    public void testProcessCharMatchesParse() throws IOException {
+        DeTagifier d = new DeTagifier("w(\"", "\");", "w(", ");");
+        Random random = new Random(42);
+        String alphabet = "<%=>\n\"\\ab";
+        for (int n = 0; n < 2000; n++) {
+            StringBuilder template = new StringBuilder();
+            for (int i = random.nextInt(40); i > 0; i--) {
+                template.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            String t = template.toString();
+            DeTagifier.CharHolder holder = d.new CharHolder();
+            int state = DeTagifier.START;
+            for (int i = 0; i < t.length(); i++) {
+                state = d.processChar(state, t.charAt(i), holder);
+            }
+            d.finish(state, holder);
+            assertEquals(t, d.parse(new StringReader(t)), holder.getString());
+        }
+    }
+}
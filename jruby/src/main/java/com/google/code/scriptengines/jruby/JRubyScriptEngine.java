@@ -30,9 +30,10 @@
 
 package com.google.code.scriptengines.jruby;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -41,21 +42,29 @@ import java.io.Reader;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
-import java.lang.reflect.InvocationHandler;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
-import java.nio.charset.CoderResult;
 import java.nio.charset.CodingErrorAction;
+import java.util.AbstractSet;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.script.AbstractScriptEngine;
 import javax.script.Bindings;
 import javax.script.Compilable;
@@ -65,12 +74,20 @@ import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineFactory;
 import javax.script.ScriptException;
-import javax.script.SimpleBindings;
 import org.jruby.Ruby;
 import org.jruby.RubyException;
 import org.jruby.RubyIO;
 import org.jruby.RubyObject;
+import org.jruby.RubySymbol;
+import org.jruby.ast.GlobalAsgnNode;
+import org.jruby.ast.GlobalVarNode;
 import org.jruby.ast.Node;
+import org.jruby.ast.executable.Script;
+import org.jruby.compiler.ASTCompiler;
+import org.jruby.compiler.ASTInspector;
+import org.jruby.compiler.NotCompilableException;
+import org.jruby.compiler.impl.StandardASMCompiler;
+import org.jruby.exceptions.JumpException;
 import org.jruby.exceptions.RaiseException;
 import org.jruby.internal.runtime.GlobalVariable;
 import org.jruby.internal.runtime.GlobalVariables;
@@ -81,32 +98,189 @@ import org.jruby.javasupport.JavaEmbedUtils;
 import org.jruby.javasupport.JavaObject;
 import org.jruby.javasupport.JavaUtil;
 import org.jruby.runtime.Block;
+import org.jruby.runtime.Constants;
 import org.jruby.runtime.IAccessor;
+import org.jruby.runtime.ThreadContext;
 import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.JRubyClassLoader;
 import org.jruby.util.KCode;
 
+import com.google.code.scriptengines.core.CacheKeys;
+import com.google.code.scriptengines.core.ConcurrentScriptContext;
+import com.google.code.scriptengines.core.Disposable;
+import com.google.code.scriptengines.core.HashBindings;
+import com.google.code.scriptengines.core.InterfaceImplementor;
+import com.google.code.scriptengines.core.LruScriptCache;
+import com.google.code.scriptengines.core.PreparedScript;
+import com.google.code.scriptengines.core.ScriptCache;
+import com.google.code.scriptengines.core.ScriptContexts;
+import com.google.code.scriptengines.core.SlotBindings;
+import com.google.code.scriptengines.core.SlotLayout;
+
 public class JRubyScriptEngine extends AbstractScriptEngine 
-        implements Compilable, Invocable { 
+        implements Compilable, Invocable, Disposable { 
+
+    // returned by ScriptContexts.getAttribute for undefined variables
+    private static final Object NOT_FOUND = new Object();
+    // limit of the names and conversions kept for global variables
+    private static final int MAX_NAMES = 1024;
 
     // my factory, may be null
     private ScriptEngineFactory factory;
-    private Ruby runtime;
+    private final String loadPath;
+    // maximum number of runtimes
+    private final int maxRuntimes;
+    // idle runtimes; taking one from here serializes its use, and a
+    // thread waiting on the queue's lock does not pin a virtual thread's
+    // carrier the way a monitor would
+    private final BlockingQueue<RubyRuntime> idle;
+    // number of runtimes created or being created
+    private final AtomicInteger created = new AtomicInteger();
+    // the runtimes created so far, by index
+    private final AtomicReferenceArray<RubyRuntime> byIndex;
+    // signalled when a runtime becomes idle while threads wait for that
+    // particular runtime rather than any
+    private final ReentrantLock waitLock = new ReentrantLock();
+    private final Condition returned = waitLock.newCondition();
+    private volatile int waiting;
+    // the runtime the current thread used last, taken again when idle;
+    // weakly held, since the runtime refers to the engine and through it
+    // to this thread local, and a thread's map would never let go of them
+    private final ThreadLocal<WeakReference<RubyRuntime>> recent =
+            new ThreadLocal<WeakReference<RubyRuntime>>();
+    // run at_exit blocks after every evaluation, as JRuby's own embedding
+    // does, instead of only on close
+    private volatile boolean terminateOnEval = !"false".equals(
+            System.getProperty("com.sun.script.jruby.terminate"));
+    // directory keeping the bytecode of compiled scripts, may be null
+    private volatile File classCache = getClassCacheProperty();
+    // compiled script files, by canonical path, modification time and length
+    private volatile ScriptCache<CompiledScript> scripts =
+            new LruScriptCache<CompiledScript>();
+
+    // implements getInterface, converting results to the declared types
+    private final InterfaceImplementor implementor = new InterfaceImplementor(this) {
+        protected Object invokeScript(Object thiz, Method method, Object[] args)
+                                throws ScriptException {
+            return invokeImpl(thiz, method.getName(), args, method.getReturnType());
+        }
+    };
+   
    
     public JRubyScriptEngine() {
-        init(System.getProperty("com.sun.script.jruby.loadpath"));
+        this(System.getProperty("com.sun.script.jruby.loadpath"),
+             Integer.getInteger("com.sun.script.jruby.runtimes", 1).intValue());
     }
 
     public JRubyScriptEngine(String loadPath) {
-        init(loadPath);
+        this(loadPath, 1);
+    }
+
+    /**
+     * Creates an engine that runs up to <code>runtimes</code> Ruby runtimes,
+     * so that as many threads can evaluate scripts at the same time. The
+     * first runtime is created right away, the others when concurrent
+     * callers need them.
+     * <p>
+     * Each runtime has its own Ruby state: methods, classes and constants
+     * defined by a script exist only in the runtime that ran it, and a
+     * caller gets whichever runtime is free, preferring the one it used
+     * last. Scripts that define methods for <code>invokeFunction</code>
+     * should be run with {@link #evalInAllRuntimes}.
+     * <p>
+     * Variables are shared through the script context, but Ruby objects
+     * are not: strings, numbers, booleans and nil are stored as Java
+     * values and can be read by every runtime, and symbols are looked up
+     * again by name, but any other Ruby object, such as a Hash or an
+     * Array, can only be used in the runtime that made it. Reading one
+     * from another runtime, or passing it to a method there, raises a
+     * <code>TypeError</code>. Share Java objects instead, such as a
+     * <code>java.util.concurrent.ConcurrentHashMap</code>.
+     */
+    public JRubyScriptEngine(String loadPath, int runtimes) {
+        if (runtimes < 1) {
+            throw new IllegalArgumentException("runtimes must be positive: " + runtimes);
+        }
+        context = new ConcurrentScriptContext();
+        if (loadPath == null) {
+            loadPath = System.getProperty("java.class.path");
+        }
+        this.loadPath = loadPath;
+        maxRuntimes = runtimes;
+        idle = new ArrayBlockingQueue<RubyRuntime>(runtimes);
+        byIndex = new AtomicReferenceArray<RubyRuntime>(runtimes);
+        created.set(1);
+        idle.add(new RubyRuntime(0));
+    }
+
+    // a Java value and the Ruby object it was converted to
+    private static class Conversion {
+        final Object java;
+        final IRubyObject ruby;
+
+        Conversion(Object java, IRubyObject ruby) {
+            this.java = java;
+            this.ruby = ruby;
+        }
+    }
+
+    // the source of a compiled script, parsed once by each runtime
+    private static class Source {
+        private final String script;
+        private final byte[] file;
+        private final String filename;
+
+        Source(String script, byte[] file, String filename) {
+            this.script = script;
+            this.file = file;
+            this.filename = filename;
+        }
+
+        // a digest of the source and of what else goes into its bytecode
+        String getClassKey() {
+            String key = file != null ? CacheKeys.forBytes(file) : CacheKeys.forSource(script);
+            key = CacheKeys.forSource("jruby " + Constants.VERSION + " " + Constants.REVISION
+                                      + "\n" + filename + "\n" + key);
+            return key.substring(key.indexOf(':') + 1);
+        }
+
+        Node parse(Ruby runtime) {
+            if (file != null) {
+                return runtime.parseFile(new ByteArrayInputStream(file), filename, null);
+            }
+            return runtime.parseEval(script, filename, null, 0);
+        }
     }
 
     // my implementation for CompiledScript
-    private class JRubyCompiledScript extends CompiledScript {
-        // my compiled code
-        private Node node;     
+    private class JRubyCompiledScript extends CompiledScript implements PreparedScript {
+        private final Source source;
+        // my code as JVM bytecode, shared by all runtimes; null when
+        // JRuby's compile mode is OFF or the code cannot be compiled
+        private final Class<?> scriptClass;
+        // my compiled code, by runtime: an instance of the class, or else
+        // the parsed code; each is only used by the thread holding its
+        // runtime
+        private final Script[] scripts;
+        private final Node[] nodes;
+        // global variables the code uses, without the '$'
+        private SlotLayout layout;
 
-        JRubyCompiledScript (Node node) {
-            this.node = node;
+        JRubyCompiledScript (Source source, RubyRuntime runtime, Node node) {
+            this.source = source;
+            this.scriptClass = compileClass(source, runtime, node);
+            this.scripts = new Script[maxRuntimes];
+            this.nodes = new Node[maxRuntimes];
+            this.nodes[runtime.index] = node;
+            this.layout = new SlotLayout(runtime.getGlobalVariableNames(node));
+        }
+
+        public String[] getVariableNames() {
+            return layout.getNames();
+        }
+
+        public Object eval(Object[] slots) throws ScriptException {
+            return eval(new SlotBindings(layout, slots));
         }
 
         public ScriptEngine getEngine() {
@@ -114,21 +288,56 @@ public class JRubyScriptEngine extends AbstractScriptEngine
         }
 
         public Object eval(ScriptContext ctx) throws ScriptException {
-            return evalNode(node, ctx);
+            RubyRuntime runtime = acquire();
+            try {
+                return eval(runtime, ctx);
+            } finally {
+                release(runtime);
+            }
+        }
+
+        Object eval(RubyRuntime runtime, ScriptContext ctx) throws ScriptException {
+            if (scriptClass != null) {
+                Script script = scripts[runtime.index];
+                if (script == null) {
+                    script = runtime.newScript(scriptClass);
+                    scripts[runtime.index] = script;
+                }
+                return runtime.evalNode(null, script, ctx);
+            }
+            Node node = nodes[runtime.index];
+            if (node == null) {
+                node = runtime.compileScript(source, ctx);
+                nodes[runtime.index] = node;
+            }
+            return runtime.evalNode(node, null, ctx);
         }
     }
 
     // Compilable methods
     public CompiledScript compile(String script) 
                                   throws ScriptException {  
-        Node node = compileScript(script, context);
-        return new JRubyCompiledScript(node);
+        return compile(getSource(script, context), context);
     }
 
     public CompiledScript compile (Reader reader) 
                                   throws ScriptException {  
-        Node node = compileScript(reader, context);
-        return new JRubyCompiledScript(node);
+        CompiledScript ret = getFileScript(context);
+        if (ret != null) {
+            return ret;
+        }
+        return compile(getSource(reader, context), context);
+    }
+
+    private CompiledScript compile(Source source, ScriptContext ctx)
+                                  throws ScriptException {
+        RubyRuntime runtime = acquire();
+        try {
+            Node node = runtime.compileScript(source, ctx);
+            return new JRubyCompiledScript(source, runtime, node);
+        } finally {
+            release(runtime);
+        }
     }
 
     // Invocable methods
@@ -157,33 +366,161 @@ public class JRubyScriptEngine extends AbstractScriptEngine
     }
 
     private <T> T makeInterface(Object obj, Class<T> clazz) {
-        if (clazz == null || !clazz.isInterface()) {
-            throw new IllegalArgumentException("interface Class expected");
-        }
-        final Object thiz = obj;
-        return (T) Proxy.newProxyInstance(
-              clazz.getClassLoader(),
-              new Class[] { clazz },
-              new InvocationHandler() {
-                  public Object invoke(Object proxy, Method m, Object[] args)
-                                       throws Throwable {
-                      return invokeImpl(thiz, m.getName(),
-                                        args, m.getReturnType());
-                  }
-              });
+        try {
+            return implementor.getInterface(obj, clazz);
+        } catch (ScriptException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Evaluates the script in each of the engine's runtimes, creating
+     * those that do not exist yet, so that the methods, classes and
+     * constants it defines are there whichever runtime later calls get.
+     * Waits for runtimes in use by other threads. Returns the result of
+     * the evaluation in the last runtime.
+     */
+    public Object evalInAllRuntimes(String script) throws ScriptException {
+        JRubyCompiledScript compiled = (JRubyCompiledScript) compile(script);
+        RubyRuntime runtime;
+        while ((runtime = create()) != null) {
+            makeIdle(runtime);
+        }
+        Object ret = null;
+        for (int i = 0; i < maxRuntimes; i++) {
+            runtime = acquire(i);
+            try {
+                ret = compiled.eval(runtime, context);
+            } finally {
+                release(runtime);
+            }
+        }
+        return ret;
     }
 
     // ScriptEngine methods
-    public synchronized Object eval(String str, ScriptContext ctx) 
+    public Object eval(String str, ScriptContext ctx) 
                        throws ScriptException { 
-        Node node = compileScript(str, ctx);
-        return evalNode(node, ctx);
+        return eval(getSource(str, ctx), ctx);
     }
 
-    public synchronized Object eval(Reader reader, ScriptContext ctx)
+    public Object eval(Reader reader, ScriptContext ctx)
                        throws ScriptException { 
-        Node node = compileScript(reader, ctx);
-        return evalNode(node, ctx);
+        CompiledScript script = getFileScript(ctx);
+        if (script != null) {
+            return script.eval(ctx);
+        }
+        return eval(getSource(reader, ctx), ctx);
+    }
+
+    private Object eval(Source source, ScriptContext ctx)
+                       throws ScriptException {
+        RubyRuntime runtime = acquire();
+        try {
+            Node node = runtime.compileScript(source, ctx);
+            return runtime.evalNode(node, null, ctx);
+        } finally {
+            release(runtime);
+        }
+    }
+
+    /**
+     * Sets whether each evaluation and invocation ends by terminating the
+     * runtime, which runs the <code>at_exit</code> blocks the call
+     * registered. That is the default, unless the system property
+     * <code>com.sun.script.jruby.terminate</code> is <code>false</code>.
+     * Without it, calls are faster, since the runtime keeps its warmed-up
+     * state, but <code>at_exit</code> blocks pile up until
+     * {@link #close} runs them.
+     */
+    public void setTerminateOnEval(boolean terminateOnEval) {
+        this.terminateOnEval = terminateOnEval;
+    }
+
+    /**
+     * Runs the <code>at_exit</code> blocks registered by the scripts
+     * evaluated so far, in each runtime. When calls do not terminate the
+     * runtime, see {@link #setTerminateOnEval}, this is the only place
+     * where they run. Waits for runtimes in use by other threads. The
+     * engine can still be used afterwards.
+     */
+    public void close() throws ScriptException {
+        RubyRuntime own = getRecent();
+        if (own != null && own.owner != Thread.currentThread()) {
+            own = null;
+        }
+        List<RubyRuntime> runtimes = new ArrayList<RubyRuntime>();
+        if (own != null) {
+            runtimes.add(own);
+        }
+        ScriptException failure = null;
+        try {
+            while (runtimes.size() < created.get()) {
+                runtimes.add(idle.take());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = new ScriptException("interrupted while closing");
+        }
+        for (RubyRuntime runtime : runtimes) {
+            if (failure == null) {
+                try {
+                    runtime.terminate();
+                } catch (ScriptException e) {
+                    failure = e;
+                }
+            }
+            if (runtime != own) {
+                makeIdle(runtime);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Runs the pending <code>at_exit</code> blocks, as {@link #close}
+     * does, when a {@link com.google.code.scriptengines.core.ScriptEnginePool}
+     * retires or discards the engine.
+     */
+    public void dispose() throws ScriptException {
+        close();
+    }
+
+    /**
+     * Sets the directory in which the JVM bytecode of compiled scripts is
+     * kept, so that it is not generated again when the same script is
+     * compiled after a restart; <code>null</code>, the default unless the
+     * system property <code>com.sun.script.jruby.classcache</code> names a
+     * directory, keeps it in memory only. Entries are keyed by a digest of
+     * the script, its file name and the JRuby version; stale entries are
+     * never removed.
+     */
+    public void setClassCache(File directory) {
+        this.classCache = directory;
+    }
+
+    /**
+     * Replaces the cache of compiled script files. When
+     * <code>ScriptEngine.FILENAME</code> names an existing file, the reader
+     * passed to <code>eval</code> or <code>compile</code> is not read: the
+     * file is, once, and the compiled script is reused until the file's
+     * modification time or length changes, see
+     * {@link CacheKeys#forFile}.
+     */
+    public void setScriptCache(ScriptCache<CompiledScript> scripts) {
+        if (scripts == null) {
+            throw new NullPointerException("null script cache");
+        }
+        this.scripts = scripts;
+    }
+
+    /**
+     * Drops all cached script files.
+     */
+    public void clearScriptCache() {
+        scripts.clear();
     }
 
     public ScriptEngineFactory getFactory() {
@@ -196,7 +533,7 @@ public class JRubyScriptEngine extends AbstractScriptEngine
     }
 
     public Bindings createBindings() {
-        return new SimpleBindings();
+        return new HashBindings();
     }
 
     // package-private methods
@@ -206,79 +543,283 @@ public class JRubyScriptEngine extends AbstractScriptEngine
 
     // internals only below this point    
 
-    private Object rubyToJava(IRubyObject value) {
-        return rubyToJava(value, Object.class);
+    /*
+     * Returns a runtime for the current thread to use: the one it already
+     * holds, the one it used last if that is idle, another idle one, a
+     * new one while there are fewer than the maximum, or else the first
+     * to become idle. Preferring the last one lets a thread see what its
+     * earlier scripts defined as long as other threads leave it alone.
+     */
+    private RubyRuntime acquire() throws ScriptException {
+        Thread thread = Thread.currentThread();
+        RubyRuntime runtime = getRecent();
+        if (runtime == null || runtime.owner != thread) {
+            if (runtime == null || !idle.remove(runtime)) {
+                runtime = idle.poll();
+            }
+            if (runtime == null) {
+                runtime = create();
+            }
+            if (runtime == null) {
+                try {
+                    runtime = idle.take();
+                } catch (InterruptedException e) {
+                    thread.interrupt();
+                    throw new ScriptException("interrupted while waiting for a runtime");
+                }
+            }
+            runtime.owner = thread;
+            if (runtime != getRecent()) {
+                recent.set(new WeakReference<RubyRuntime>(runtime));
+            }
+        }
+        runtime.depth++;
+        return runtime;
+    }
+
+    private RubyRuntime getRecent() {
+        WeakReference<RubyRuntime> ref = recent.get();
+        return ref == null ? null : ref.get();
     }
 
-    private Object rubyToJava(IRubyObject value, Class type) {
-        return JavaUtil.convertArgument(
-                runtime,
-                Java.ruby_to_java(value, value, Block.NULL_BLOCK), 
-                type);
+    /*
+     * Returns the runtime with the given index for the current thread to
+     * use, waiting until it has been created and is idle. Ruby objects can
+     * only be used in the runtime that made them.
+     */
+    private RubyRuntime acquire(int index) throws ScriptException {
+        Thread thread = Thread.currentThread();
+        RubyRuntime runtime = byIndex.get(index);
+        if (runtime == null || runtime.owner != thread) {
+            waitLock.lock();
+            waiting++;
+            try {
+                while (true) {
+                    runtime = byIndex.get(index);
+                    if (runtime != null && idle.remove(runtime)) {
+                        break;
+                    }
+                    if (runtime == null && created.get() <= index) {
+                        throw new ScriptException("runtime " + index + " could not be created");
+                    }
+                    returned.await();
+                }
+            } catch (InterruptedException e) {
+                thread.interrupt();
+                throw new ScriptException("interrupted while waiting for a runtime");
+            } finally {
+                waiting--;
+                waitLock.unlock();
+            }
+            // not made the recent one: the thread may be holding another
+            runtime.owner = thread;
+        }
+        runtime.depth++;
+        return runtime;
     }
 
-    private IRubyObject javaToRuby(Object value) {
-        if (value instanceof IRubyObject) {
-            return (IRubyObject) value;
+    private void release(RubyRuntime runtime) {
+        if (--runtime.depth == 0) {
+            runtime.owner = null;
+            makeIdle(runtime);
         }
-        IRubyObject result = JavaUtil.convertJavaToRuby(runtime, value);
-        if (result instanceof JavaObject) {
-            return runtime.getModule("JavaUtilities").callMethod(runtime.getCurrentContext(), "wrap", result);
+    }
+
+    private void makeIdle(RubyRuntime runtime) {
+        idle.add(runtime);
+        signalWaiting();
+    }
+
+    private void signalWaiting() {
+        if (waiting > 0) {
+            waitLock.lock();
+            try {
+                returned.signalAll();
+            } finally {
+                waitLock.unlock();
+            }
         }
-        return result;
-    }   
+    }
 
-    private synchronized Node compileScript(String script, ScriptContext ctx) 
-                                 throws ScriptException {
-        GlobalVariables oldGlobals = runtime.getGlobalVariables();  
+    /*
+     * Returns the runtime the object belongs to.
+     */
+    private RubyRuntime getRuntime(IRubyObject obj) {
+        Ruby ruby = obj.getRuntime();
+        for (int i = 0; i < maxRuntimes; i++) {
+            RubyRuntime runtime = byIndex.get(i);
+            if (runtime != null && runtime.runtime == ruby) {
+                return runtime;
+            }
+        }
+        throw new IllegalArgumentException("object of another engine: " + obj);
+    }
+
+    // creates a runtime if there are fewer than the maximum
+    private RubyRuntime create() {
+        int count = created.get();
+        while (count < maxRuntimes) {
+            if (created.compareAndSet(count, count + 1)) {
+                boolean done = false;
+                try {
+                    RubyRuntime runtime = new RubyRuntime(count);
+                    done = true;
+                    return runtime;
+                } finally {
+                    if (!done) {
+                        created.decrementAndGet();
+                        signalWaiting();
+                    }
+                }
+            }
+            count = created.get();
+        }
+        return null;
+    }
+
+    private static File getClassCacheProperty() {
+        String dir = System.getProperty("com.sun.script.jruby.classcache");
+        return dir == null ? null : new File(dir);
+    }
+
+    /*
+     * Compiles parsed code to a class, or loads the class from the cache
+     * directory. The class is loaded by a class loader of its own, so
+     * that all runtimes can use it and it can be unloaded with the
+     * compiled script. Returns null when JRuby is configured not to
+     * compile scripts, or when it cannot compile this one; the code is
+     * then run the way it would have been run before.
+     */
+    private Class<?> compileClass(Source source, RubyRuntime runtime, Node node) {
+        if (!runtime.runtime.getInstanceConfig().getCompileMode().shouldPrecompileCLI()) {
+            return null;
+        }
+        String key = source.getClassKey();
+        String className = "ruby/jit/script_" + key;
+        File dir = classCache;
+        File file = dir == null ? null : new File(dir, key + ".class");
+        if (file != null && file.isFile()) {
+            Class<?> ret = null;
+            try {
+                ret = defineClass(className, getRubyFile(file.getPath()));
+            } catch (IOException e) {
+                // compile it again
+            }
+            if (ret != null) {
+                return ret;
+            }
+            // truncated, or written by another JRuby: replace it
+            file.delete();
+        }
+        byte[] bytes;
         try {
-            setErrorWriter(ctx.getErrorWriter());
-            setGlobalVariables(ctx);
-            String filename = (String) ctx.getAttribute(ScriptEngine.FILENAME);
-            if (filename == null) {
-                filename = "<unknown>";
-            }            
-            return runtime.parseEval(script, filename, null, 0);
-        } catch (RaiseException e) {
-            RubyException re =  e.getException();
-            runtime.printError(re);
-            throw new ScriptException(e);
-        } catch (Exception e) {
-            throw new ScriptException(e);
-        } finally {
-            if (oldGlobals != null) {
-                setGlobalVariables(oldGlobals);
+            ASTInspector inspector = new ASTInspector();
+            inspector.inspect(node);
+            StandardASMCompiler compiler = new StandardASMCompiler(className, source.filename);
+            new ASTCompiler().compileRoot(node, compiler, inspector);
+            bytes = compiler.getClassByteArray();
+        } catch (NotCompilableException e) {
+            // like the code JRuby runs interpreted
+            return null;
+        } catch (RuntimeException e) {
+            // ASM's limits, such as a method too large
+            return null;
+        }
+        Class<?> ret = defineClass(className, bytes);
+        if (ret != null && file != null) {
+            writeClassFile(file, bytes);
+        }
+        return ret;
+    }
+
+    /*
+     * Defines the class in a class loader of its own and links it, so
+     * that bytecode the JVM rejects is found here; returns null then.
+     */
+    private static Class<?> defineClass(String className, byte[] bytes) {
+        JRubyClassLoader loader = new JRubyClassLoader(Ruby.class.getClassLoader());
+        try {
+            Class<?> ret = loader.defineClass(className.replace('/', '.'), bytes);
+            Class.forName(ret.getName(), true, loader);
+            return ret;
+        } catch (LinkageError e) {
+            return null;
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    // writes through a temporary file, so readers never see part of it
+    private static void writeClassFile(File file, byte[] bytes) {
+        File tmp = new File(file.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            file.getParentFile().mkdirs();
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
             }
+        } catch (IOException e) {
+            // the cache is only an optimization
+            tmp.delete();
         }
     }
 
-    private synchronized Node compileScript(Reader reader, ScriptContext ctx) 
+    /*
+     * Returns the compiled form of the file named by the context, or null
+     * if it names none.
+     */
+    private CompiledScript getFileScript(ScriptContext ctx) throws ScriptException {
+        String filename = (String) ctx.getAttribute(ScriptEngine.FILENAME);
+        if (filename == null) {
+            return null;
+        }
+        File file = new File(filename);
+        if (!file.isFile()) {
+            return null;
+        }
+        String key = CacheKeys.forFile(file);
+        CompiledScript ret = scripts.get(key);
+        // the cache may be shared with engines whose runtimes ours are not
+        if (ret == null || ret.getEngine() != this) {
+            byte[] bytes;
+            try {
+                bytes = getRubyFile(filename);
+            } catch (IOException exp) {
+                throw new ScriptException(exp);
+            }
+            ret = compile(new Source(null, bytes, filename), ctx);
+            scripts.put(key, ret);
+        }
+        return ret;
+    }
+
+    private Source getSource(String script, ScriptContext ctx) {
+        return new Source(script, null, getFilename(ctx));
+    }
+
+    private Source getSource(Reader reader, ScriptContext ctx) 
                                  throws ScriptException {
-        GlobalVariables oldGlobals = runtime.getGlobalVariables();  
+        String filename = (String) ctx.getAttribute(ScriptEngine.FILENAME);
         try {
-            setErrorWriter(ctx.getErrorWriter());
-            setGlobalVariables(ctx);
-            String filename = (String) ctx.getAttribute(ScriptEngine.FILENAME);
             if (filename == null) {
-                filename = "<unknown>";
-                String script = getRubyScript(reader);
-                return runtime.parseEval(script, filename, null, 0);
-            }
-            InputStream inputStream = getRubyReader(filename);
-            return runtime.parseFile(inputStream, filename, null);
-        } catch (RaiseException e) {
-            RubyException re =  e.getException();
-            runtime.printError(re);
-            throw new ScriptException(e);
-        } catch (Exception exp) {
-            throw new ScriptException(exp);
-        } finally {
-            if (oldGlobals != null) {
-                setGlobalVariables(oldGlobals);
+                return new Source(getRubyScript(reader), null, "<unknown>");
             }
+            return new Source(null, getRubyFile(filename), filename);
+        } catch (IOException exp) {
+            throw new ScriptException(exp);
         }
     }
 
+    private String getFilename(ScriptContext ctx) {
+        String filename = (String) ctx.getAttribute(ScriptEngine.FILENAME);
+        return filename == null ? "<unknown>" : filename;
+    }
+
     private String getRubyScript(Reader reader) throws IOException {
         StringBuffer sb = new StringBuffer();
         char[] cbuf;
@@ -294,130 +835,412 @@ public class JRubyScriptEngine extends AbstractScriptEngine
         return (new String(sb)).trim();
     }
     
-    private InputStream getRubyReader(String filename) throws FileNotFoundException {
+    // reads the file into an array of its length, growing it only if the
+    // file grows while it is read
+    private byte[] getRubyFile(String filename) throws IOException {
         File file = new File(filename);
-        return new FileInputStream(file);
-    }
-
-    private void setGlobalVariables(final ScriptContext ctx) {
-        ctx.setAttribute("context", ctx, ScriptContext.ENGINE_SCOPE);
-        setGlobalVariables(new GlobalVariables(runtime) {
-                GlobalVariables parent = runtime.getGlobalVariables();
-
-            @Override
-                public void define(String name, IAccessor accessor) {
-                    assert name != null;
-                    assert accessor != null;
-                    assert name.startsWith("$");
-                    synchronized (ctx) {
-                        Bindings engineScope = ctx.getBindings(ScriptContext.ENGINE_SCOPE);                  
-                        engineScope.put(name, new GlobalVariable(accessor)); 
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[(int) file.length()];
+            int length = 0;
+            while (true) {
+                if (length == buf.length) {
+                    int b = in.read();
+                    if (b < 0) {
+                        return buf;
                     }
+                    byte[] tmp = new byte[Math.max(8*1024, buf.length * 2)];
+                    System.arraycopy(buf, 0, tmp, 0, length);
+                    buf = tmp;
+                    buf[length++] = (byte) b;
+                }
+                int n = in.read(buf, length, buf.length - length);
+                if (n < 0) {
+                    byte[] ret = new byte[length];
+                    System.arraycopy(buf, 0, ret, 0, length);
+                    return ret;
                 }
+                length += n;
+            }
+        } finally {
+            in.close();
+        }
+    }
 
-            @Override
-                public void defineReadonly(String name, IAccessor accessor) {
-                    assert name != null;
-                    assert accessor != null;
-                    assert name.startsWith("$");
-                    synchronized (ctx) {
-                        Bindings engineScope = ctx.getBindings(ScriptContext.ENGINE_SCOPE);
-                        engineScope.put(name, new GlobalVariable(new 
-                                             ReadonlyAccessor(name, accessor)));
-                    }
-                } 
-
-            @Override
-                public boolean isDefined(String name) {
-                    assert name != null;
-                    assert name.startsWith("$");
-                    synchronized (ctx) {
-                        String modifiedName = name.substring(1);
-                        boolean defined = ctx.getAttributesScope(modifiedName) != -1;
-                        return defined ? true : parent.isDefined(name);
-                    }
+
+    private Object invokeImpl(final Object obj, String method, 
+                        Object[] args, Class returnType)
+                        throws ScriptException {
+        if (method == null) {
+            throw new NullPointerException("method name is null");
+        }
+        // a Ruby object is called in its own runtime, whichever the
+        // thread would otherwise get
+        RubyRuntime runtime = obj instanceof IRubyObject
+                ? acquire(getRuntime((IRubyObject) obj).index) : acquire();
+        try {
+            return runtime.invoke(context, obj, method, args, returnType);
+        } finally {
+            release(runtime);
+        }
+    }
+
+    // a Ruby runtime, with the streams and globals last set up in it
+    private class RubyRuntime {
+        private final Ruby runtime;
+        // slot of the runtime in compiled scripts
+        private final int index;
+        // the thread holding the runtime, and its nested calls
+        private volatile Thread owner;
+        private int depth;
+        // the writers the runtime's output streams were last set up for
+        private Writer outWriter;
+        private Writer errWriter;
+        // the streams writing to them, flushed after each call
+        private WriterOutputStream outStream;
+        private WriterOutputStream errStream;
+        // the globals adapter made for the last context, and the globals it
+        // falls back to
+        private ScriptContext globalsContext;
+        private GlobalVariables contextGlobals;
+        private GlobalVariables globalsParent;
+        // global variable names without their '$', by name
+        private final ConcurrentHashMap<String, String> bareNames =
+                new ConcurrentHashMap<String, String>();
+
+        Script newScript(Class<?> scriptClass) throws ScriptException {
+            try {
+                return (Script) scriptClass.newInstance();
+            } catch (Exception exp) {
+                throw new ScriptException(exp);
+            }
+        }
+
+        RubyRuntime(int index) {
+            this.index = index;
+            runtime = Ruby.newInstance();
+            IAccessor d = new ValueAccessor(runtime.newString("<script>"));
+            runtime.getGlobalVariables().define("$PROGRAM_NAME", d);
+            runtime.getGlobalVariables().define("$0", d);
+            List list = Arrays.asList(loadPath.split(File.pathSeparator));
+            runtime.getLoadService().init(list);                
+            runtime.getLoadService().require("java");
+            byIndex.set(index, this);
+        }
+
+        private Object rubyToJava(IRubyObject value) {
+            return rubyToJava(value, Object.class);
+        }
+
+        private Object rubyToJava(IRubyObject value, Class type) {
+            return JavaUtil.convertArgument(
+                    runtime,
+                    Java.ruby_to_java(value, value, Block.NULL_BLOCK), 
+                    type);
+        }
+
+        private IRubyObject javaToRuby(Object value) {
+            if (value instanceof IRubyObject) {
+                return own((IRubyObject) value);
+            }
+            IRubyObject result = JavaUtil.convertJavaToRuby(runtime, value);
+            if (result instanceof JavaObject) {
+                return runtime.getModule("JavaUtilities").callMethod(runtime.getCurrentContext(), "wrap", result);
+            }
+            return result;
+        }   
+
+
+        /*
+         * Returns the value if it belongs to this runtime. A symbol of
+         * another runtime is looked up by name; any other Ruby object of
+         * another runtime is refused with a TypeError, since its class is
+         * that runtime's and Ruby objects are not safe to use from two
+         * threads at once.
+         */
+        private IRubyObject own(IRubyObject value) {
+            if (value.getRuntime() == runtime) {
+                return value;
+            }
+            if (value instanceof RubySymbol) {
+                return runtime.newSymbol(value.asJavaString());
+            }
+            throw runtime.newTypeError("can't use a " + value.getMetaClass().getName()
+                    + " of another Ruby runtime");
+        }
+
+        Node compileScript(Source source, ScriptContext ctx) 
+                                     throws ScriptException {
+            GlobalVariables oldGlobals = runtime.getGlobalVariables();  
+            try {
+                setErrorWriter(ctx.getErrorWriter());
+                setGlobalVariables(ctx);
+                return source.parse(runtime);
+            } catch (RaiseException e) {
+                RubyException re =  e.getException();
+                runtime.printError(re);
+                throw new ScriptException(e);
+            } catch (Exception exp) {
+                throw new ScriptException(exp);
+            } finally {
+                if (oldGlobals != null) {
+                    setGlobalVariables(oldGlobals);
                 }
+                flushOutput();
+            }
+        }
 
-            @Override
-                public void alias(String name, String oldName) {
-                    assert name != null;
-                    assert oldName != null;
-                    assert name.startsWith("$");
-                    assert oldName.startsWith("$");
+        /*
+         * Returns the names of the bindings the parsed code reads or assigns
+         * as global variables, leaving out the runtime's own globals. Called
+         * by the thread holding the runtime, while it has its own globals.
+         */
+        String[] getGlobalVariableNames(Node node) {
+            Set<String> names = new LinkedHashSet<String>();
+            collectGlobalVariables(node, names);
+            // set by every evaluation
+            names.remove("context");
+            return names.toArray(new String[names.size()]);
+        }
 
-                    if (runtime.getSafeLevel() >= 4) {
-                        throw runtime.newSecurityError("Insecure: can't alias global variable");
+        private void collectGlobalVariables(Node node, Set<String> names) {
+            String name = null;
+            if (node instanceof GlobalVarNode) {
+                name = ((GlobalVarNode) node).getName();
+            } else if (node instanceof GlobalAsgnNode) {
+                name = ((GlobalAsgnNode) node).getName();
+            }
+            if (name != null && !runtime.getGlobalVariables().isDefined(name)) {
+                names.add(name.substring(1));
+            }
+            for (Node child : node.childNodes()) {
+                if (child != null) {
+                    collectGlobalVariables(child, names);
+                }
+            }
+        }
+
+
+        /*
+         * Returns the name without its '$'. Names are taken from the
+         * scripts, so there are few of them and each is only copied once.
+         */
+        private String bareName(String name) {
+            String ret = bareNames.get(name);
+            if (ret == null) {
+                ret = name.substring(1);
+                if (bareNames.size() < MAX_NAMES) {
+                    bareNames.put(name, ret);
+                }
+            }
+            return ret;
+        }
+
+        private void setGlobalVariables(ScriptContext ctx) {
+            ctx.setAttribute("context", ctx, ScriptContext.ENGINE_SCOPE);
+            GlobalVariables parent = runtime.getGlobalVariables();
+            if (ctx != globalsContext || parent != globalsParent) {
+                contextGlobals = newGlobalVariables(ctx, parent);
+                globalsContext = ctx;
+                globalsParent = parent;
+            }
+            setGlobalVariables(contextGlobals);
+        }
+
+        private GlobalVariables newGlobalVariables(final ScriptContext ctx,
+                                                   final GlobalVariables parent) {
+            final ConcurrentScriptContext shared = ctx instanceof ConcurrentScriptContext
+                    ? (ConcurrentScriptContext) ctx : null;
+            final Lock lock = ScriptContexts.lock(ctx);
+            return new GlobalVariables(runtime) {
+                // the last conversion of each variable's value, by name
+                private final ConcurrentHashMap<String, Conversion> conversions =
+                        new ConcurrentHashMap<String, Conversion>();
+
+                @Override
+                    public void define(String name, IAccessor accessor) {
+                        assert name != null;
+                        assert accessor != null;
+                        assert name.startsWith("$");
+                        lock.lock();
+                        try {
+                            Bindings engineScope = ctx.getBindings(ScriptContext.ENGINE_SCOPE);                  
+                            engineScope.put(name, new GlobalVariable(accessor)); 
+                        } finally {
+                            lock.unlock();
+                        }
                     }
 
-                    synchronized (ctx) {
-                        int scope = ctx.getAttributesScope(name);
-                        if (scope == -1) {
-                            scope = ScriptContext.ENGINE_SCOPE;
+                @Override
+                    public void defineReadonly(String name, IAccessor accessor) {
+                        assert name != null;
+                        assert accessor != null;
+                        assert name.startsWith("$");
+                        lock.lock();
+                        try {
+                            Bindings engineScope = ctx.getBindings(ScriptContext.ENGINE_SCOPE);
+                            engineScope.put(name, new GlobalVariable(new 
+                                                 ReadonlyAccessor(name, accessor)));
+                        } finally {
+                            lock.unlock();
                         }
+                    } 
 
-                        IRubyObject value = get(oldName);
-                        ctx.setAttribute(name, rubyToJava(value), scope);
+                @Override
+                    public boolean isDefined(String name) {
+                        assert name != null;
+                        assert name.startsWith("$");
+                        String bare = bareName(name);
+                        if (shared != null) {
+                            return shared.getAttribute(bare, NOT_FOUND) != NOT_FOUND
+                                    || parent.isDefined(name);
+                        }
+                        boolean defined;
+                        lock.lock();
+                        try {
+                            defined = ctx.getAttributesScope(bare) != -1;
+                        } finally {
+                            lock.unlock();
+                        }
+                        return defined ? true : parent.isDefined(name);
                     }
-                }
 
-            @Override
-                public IRubyObject get(String name) {
-                    assert name != null;
-                    assert name.startsWith("$");
+                @Override
+                    public void alias(String name, String oldName) {
+                        assert name != null;
+                        assert oldName != null;
+                        assert name.startsWith("$");
+                        assert oldName.startsWith("$");
 
-                    synchronized (ctx) {
-                        // skip '$' and try
-                        String modifiedName = name.substring(1);
-                        int scope = ctx.getAttributesScope(modifiedName);
-                        if (scope == -1) {
+                        if (runtime.getSafeLevel() >= 4) {
+                            throw runtime.newSecurityError("Insecure: can't alias global variable");
+                        }
+
+                        // read first: the old name may belong to the parent
+                        Object value = rubyToJava(get(oldName));
+                        lock.lock();
+                        try {
+                            int scope = ctx.getAttributesScope(name);
+                            if (scope == -1) {
+                                scope = ScriptContext.ENGINE_SCOPE;
+                            }
+                            ctx.setAttribute(name, value, scope);
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+
+                @Override
+                    public IRubyObject get(String name) {
+                        assert name != null;
+                        assert name.startsWith("$");
+
+                        String bare = bareName(name);
+                        Object obj;
+                        if (shared != null) {
+                            obj = shared.getAttribute(bare, NOT_FOUND);
+                        } else {
+                            obj = ScriptContexts.getAttribute(ctx, bare, NOT_FOUND, lock);
+                        }
+                        if (obj == NOT_FOUND) {
                             return parent.get(name);
                         }
 
-                        Object obj = ctx.getAttribute(modifiedName, scope);
                         if (obj instanceof IAccessor) {
                             return ((IAccessor)obj).getValue();
-                        } else {
-                            return javaToRuby(obj);
                         }
-                    }                    
-                }
-
-            @Override
-                public IRubyObject set(String name, IRubyObject value) {
-                    assert name != null;
-                    assert name.startsWith("$");
-
-                    if (runtime.getSafeLevel() >= 4) {
-                        throw runtime.newSecurityError("Insecure: can't change global variable value");
+                        Conversion last = conversions.get(bare);
+                        if (last != null && last.java == obj) {
+                            return last.ruby;
+                        }
+                        IRubyObject value = javaToRuby(obj);
+                        remember(bare, obj, value);
+                        return value;
                     }
 
-                    synchronized (ctx) {
-                        // skip '$' and try
-                        String modifiedName = name.substring(1);
-                        int scope = ctx.getAttributesScope(modifiedName);
-                        if (scope == -1) {
-                            scope = ScriptContext.ENGINE_SCOPE;
+                /*
+                 * Returns the new value, like JRuby's own globals: compiled
+                 * code uses it as the value of the assignment.
+                 */
+                @Override
+                    public IRubyObject set(String name, IRubyObject value) {
+                        assert name != null;
+                        assert name.startsWith("$");
+
+                        if (runtime.getSafeLevel() >= 4) {
+                            throw runtime.newSecurityError("Insecure: can't change global variable value");
                         }
-                        IRubyObject oldValue = get(name);
-                        Object obj = ctx.getAttribute(modifiedName, scope);
-                        if (obj instanceof IAccessor) {
-                            ((IAccessor)obj).setValue(value);
-                        } else {                        
-                            ctx.setAttribute(modifiedName, rubyToJava(value), scope);
-                            if ("KCODE".equals(modifiedName)) {
-                                setKCode((String)rubyToJava(value));
-                            } else if ("stdout".equals(modifiedName)) {
-                                equalOutputs((RubyObject)value);
+
+                        String bare = bareName(name);
+                        own(value);
+                        Object obj;
+                        if (shared != null) {
+                            obj = shared.getAttribute(bare, NOT_FOUND);
+                            if (obj instanceof IAccessor) {
+                                return ((IAccessor)obj).setValue(value);
                             }
+                            obj = rubyToJava(value);
+                            shared.setAttribute(bare, obj);
+                        } else {
+                            lock.lock();
+                            try {
+                                int scope = ctx.getAttributesScope(bare);
+                                if (scope == -1) {
+                                    scope = ScriptContext.ENGINE_SCOPE;
+                                }
+                                obj = ctx.getAttribute(bare, scope);
+                                if (obj instanceof IAccessor) {
+                                    return ((IAccessor)obj).setValue(value);
+                                }
+                                obj = rubyToJava(value);
+                                ctx.setAttribute(bare, obj, scope);
+                            } finally {
+                                lock.unlock();
+                            }
+                        }
+                        remember(bare, obj, value);
+                        if ("KCODE".equals(bare)) {
+                            setKCode((String) obj);
+                        } else if ("stdout".equals(bare)) {
+                            equalOutputs((RubyObject)value);
                         }
-                        return oldValue;
+                        return value;
+                    }
+
+                // keeps the Ruby proxy of a Java object, which is costly
+                // to make, for the next read of the same variable; strings
+                // and other values Ruby converts by copying are not kept,
+                // since Ruby code may change the copy
+                private void remember(String bare, Object obj, IRubyObject value) {
+                    if (obj == null || obj instanceof String || obj instanceof Number
+                            || obj instanceof Boolean || obj instanceof Character) {
+                        conversions.remove(bare);
+                    } else if (conversions.size() < MAX_NAMES) {
+                        conversions.put(bare, new Conversion(obj, value));
                     }
                 }
 
-            @Override
-                public Set<String> getNames() {                    
+                /*
+                 * The names are only collected when the set is used, which
+                 * few callers do.
+                 */
+                @Override
+                    public Set<String> getNames() {                    
+                        return new AbstractSet<String>() {
+                            public Iterator<String> iterator() {
+                                return collectNames().iterator();
+                            }
+
+                            public int size() {
+                                return collectNames().size();
+                            }
+                        };
+                    }
+
+                private Set<String> collectNames() {
                     HashSet set = new HashSet();
-                    synchronized (ctx) {
+                    lock.lock();
+                    try {
                         for (int scope : ctx.getScopes()) {
                             Bindings b = ctx.getBindings(scope);
                             if (b != null) {
@@ -426,97 +1249,70 @@ public class JRubyScriptEngine extends AbstractScriptEngine
                                 }
                             }
                         }
+                    } finally {
+                        lock.unlock();
                     }
                     for (Iterator<String> names = parent.getNames().iterator(); names.hasNext();) {
                         set.add(names.next());
                     }
-                    return Collections.unmodifiableSet(set);
+                    return set;
                 }
 
-            @Override
-                public IRubyObject getDefaultSeparator() {
-                    return parent.getDefaultSeparator();
-                }
-            });
-    }
+                @Override
+                    public IRubyObject getDefaultSeparator() {
+                        return parent.getDefaultSeparator();
+                    }
+                };
+        }
 
-    private void setGlobalVariables(GlobalVariables globals) {
-        runtime.setGlobalVariables(globals);
-    }
+        private void setGlobalVariables(GlobalVariables globals) {
+            runtime.setGlobalVariables(globals);
+        }
 
-    private synchronized Object evalNode(Node node, ScriptContext ctx) 
-                            throws ScriptException {
-        GlobalVariables oldGlobals = runtime.getGlobalVariables();
-        try {
-            setWriterOutputStream(ctx.getWriter());
-            setErrorWriter(ctx.getErrorWriter());
-            setGlobalVariables(ctx);
-            return rubyToJava(runtime.runNormally(node, false));
-        } catch (Exception exp) {
-            throw new ScriptException(exp);
-        } finally {
+        /*
+         * Runs the script, or else the parsed code the way JRuby's compile
+         * mode asks for.
+         */
+        Object evalNode(Node node, Script script, ScriptContext ctx) 
+                                throws ScriptException {
+            GlobalVariables oldGlobals = runtime.getGlobalVariables();
             try {
-                JavaEmbedUtils.terminate(runtime);
-            } catch (RaiseException e) {
-                RubyException re =  e.getException();
-                runtime.printError(re);
-                if (!runtime.fastGetClass("SystemExit").isInstance(re)) {
-                    throw new ScriptException(e);
+                setWriterOutputStream(ctx.getWriter());
+                setErrorWriter(ctx.getErrorWriter());
+                setGlobalVariables(ctx);
+                IRubyObject result;
+                if (script != null) {
+                    ThreadContext tc = runtime.getCurrentContext();
+                    try {
+                        result = script.load(tc, tc.getFrameSelf(),
+                                             IRubyObject.NULL_ARRAY, Block.NULL_BLOCK);
+                    } catch (JumpException.ReturnJump rj) {
+                        result = (IRubyObject) rj.getValue();
+                    }
+                } else {
+                    result = runtime.runNormally(node, false);
                 }
+                return rubyToJava(result);
+            } catch (Exception exp) {
+                throw new ScriptException(exp);
             } finally {
-                if (oldGlobals != null) {
-                    setGlobalVariables(oldGlobals);
+                try {
+                    if (terminateOnEval) {
+                        terminate();
+                    }
+                } finally {
+                    if (oldGlobals != null) {
+                        setGlobalVariables(oldGlobals);
+                    }
+                    flushOutput();
                 }
             }
         }
-    }
-
-    private void init(String loadPath) {        
-        runtime = Ruby.newInstance();
-        IAccessor d = new ValueAccessor(runtime.newString("<script>"));
-        runtime.getGlobalVariables().define("$PROGRAM_NAME", d);
-        runtime.getGlobalVariables().define("$0", d);
-        if (loadPath == null) {
-            loadPath = System.getProperty("java.class.path");
-        }
-        List list = Arrays.asList(loadPath.split(File.pathSeparator));
-        runtime.getLoadService().init(list);                
-        runtime.getLoadService().require("java");
-    }
 
-    private synchronized Object invokeImpl(final Object obj, String method, 
-                        Object[] args, Class returnType)
-                        throws ScriptException {
-        if (method == null) {
-            throw new NullPointerException("method name is null");
-        }
-        GlobalVariables oldGlobals = runtime.getGlobalVariables();
-        try {
-            setWriterOutputStream(context.getWriter());
-            setErrorWriter(context.getErrorWriter());
-            setGlobalVariables(context);           
-            IRubyObject rubyRecv = obj != null ? 
-                  JavaUtil.convertJavaToRuby(runtime, obj) : runtime.getTopSelf();
-            
-            IRubyObject result;
-            if (args != null && args.length > 0) {
-                IRubyObject[] rubyArgs = JavaUtil.convertJavaArrayToRuby(runtime, args);
-                // Create Ruby proxies for any input arguments that are not primitives.
-                IRubyObject javaUtilities = runtime.getObject().getConstant("JavaUtilities");
-                for (int i = 0; i < rubyArgs.length; i++) {
-                    IRubyObject tmp = rubyArgs[i];
-                    if (tmp instanceof JavaObject) {
-                        rubyArgs[i] = javaUtilities.callMethod(runtime.getCurrentContext(), "wrap", tmp);
-                    }
-                }
-                result = rubyRecv.callMethod(runtime.getCurrentContext(), method, rubyArgs);
-            } else {
-                result = rubyRecv.callMethod(runtime.getCurrentContext(), method);
-            }   
-            return rubyToJava(result, returnType);
-        } catch (Exception exp) {
-            throw new ScriptException(exp);
-        } finally {
+        /*
+         * Runs the at_exit blocks and finalizers. Called by the thread holding the runtime.
+         */
+        void terminate() throws ScriptException {
             try {
                 JavaEmbedUtils.terminate(runtime);
             } catch (RaiseException e) {
@@ -526,53 +1322,125 @@ public class JRubyScriptEngine extends AbstractScriptEngine
                     throw new ScriptException(e);
                 }
             } finally {
-                if (oldGlobals != null) {
-                    setGlobalVariables(oldGlobals);
+                flushOutput();
+            }
+        }
+
+
+        Object invoke(ScriptContext ctx, final Object obj, String method, 
+                            Object[] args, Class returnType)
+                            throws ScriptException {
+            GlobalVariables oldGlobals = runtime.getGlobalVariables();
+            try {
+                setWriterOutputStream(ctx.getWriter());
+                setErrorWriter(ctx.getErrorWriter());
+                setGlobalVariables(ctx);           
+                IRubyObject rubyRecv = obj != null ? 
+                      JavaUtil.convertJavaToRuby(runtime, obj) : runtime.getTopSelf();
+            
+                IRubyObject result;
+                if (args != null && args.length > 0) {
+                    IRubyObject[] rubyArgs = JavaUtil.convertJavaArrayToRuby(runtime, args);
+                    // Create Ruby proxies for any input arguments that are not primitives.
+                    IRubyObject javaUtilities = runtime.getObject().getConstant("JavaUtilities");
+                    for (int i = 0; i < rubyArgs.length; i++) {
+                        IRubyObject tmp = own(rubyArgs[i]);
+                        if (tmp instanceof JavaObject) {
+                            rubyArgs[i] = javaUtilities.callMethod(runtime.getCurrentContext(), "wrap", tmp);
+                        }
+                    }
+                    result = rubyRecv.callMethod(runtime.getCurrentContext(), method, rubyArgs);
+                } else {
+                    result = rubyRecv.callMethod(runtime.getCurrentContext(), method);
+                }   
+                return rubyToJava(result, returnType);
+            } catch (Exception exp) {
+                throw new ScriptException(exp);
+            } finally {
+                try {
+                    if (terminateOnEval) {
+                        terminate();
+                    }
+                } finally {
+                    if (oldGlobals != null) {
+                        setGlobalVariables(oldGlobals);
+                    }
+                    flushOutput();
                 }
             }
         }
-    }
     
-    private void setKCode(String encoding) {
-        KCode kcode = KCode.create(runtime, encoding);
-        runtime.setKCode(kcode);
-    }
     
-    private void equalOutputs(RubyObject value) {
-        runtime.getGlobalVariables().set("$>", value);
-        runtime.getGlobalVariables().set("$defout", value);
-    }
+        private void setKCode(String encoding) {
+            KCode kcode = KCode.create(runtime, encoding);
+            runtime.setKCode(kcode);
+        }
     
-    private void setWriterOutputStream(Writer writer) {
-        try {
-            RubyIO dummy_io = 
-                new RubyIO(runtime, new PrintStream(new WriterOutputStream(new StringWriter())));
-            runtime.getGlobalVariables().set("$stderr", dummy_io); //discard unwanted warnings
-            RubyIO io = 
-                new RubyIO(runtime, new PrintStream(new WriterOutputStream(writer)));
-            io.getOpenFile().getMainStream().setSync(true);
-            runtime.defineGlobalConstant("STDOUT", io);
-            runtime.getGlobalVariables().set("$>", io);
-            runtime.getGlobalVariables().set("$stdout", io);
-            runtime.getGlobalVariables().set("$defout", io);
-        } catch (UnsupportedEncodingException exp) {
-            throw new IllegalArgumentException(exp);
+        private void equalOutputs(RubyObject value) {
+            runtime.getGlobalVariables().set("$>", value);
+            runtime.getGlobalVariables().set("$defout", value);
         }
-    }
     
-    private void setErrorWriter(Writer writer) {
-        try {
-            RubyIO dummy_io = 
-                new RubyIO(runtime, new PrintStream(new WriterOutputStream(new StringWriter())));
-            runtime.getGlobalVariables().set("$stderr", dummy_io); //discard unwanted warnings
-            RubyIO io = 
-                new RubyIO(runtime, new PrintStream(new WriterOutputStream(writer)));
-            io.getOpenFile().getMainStream().setSync(true);
-            runtime.defineGlobalConstant("STDERR", io);
-            runtime.getGlobalVariables().set("$stderr", io);
-            runtime.getGlobalVariables().set("$deferr", io);
-        } catch (UnsupportedEncodingException exp) {
-            throw new IllegalArgumentException(exp);
+        /*
+         * The streams are only replaced when the writer changes, which also
+         * spares the runtime from redefining the STDOUT and STDERR constants.
+         */
+        private void setWriterOutputStream(Writer writer) {
+            if (writer == outWriter) {
+                return;
+            }
+            try {
+                IRubyObject stderr = runtime.getGlobalVariables().get("$stderr");
+                RubyIO dummy_io = 
+                    new RubyIO(runtime, new PrintStream(new WriterOutputStream(new StringWriter(), false)));
+                runtime.getGlobalVariables().set("$stderr", dummy_io); //discard unwanted warnings
+                WriterOutputStream stream = new WriterOutputStream(writer, false);
+                RubyIO io = new RubyIO(runtime, new PrintStream(stream));
+                io.getOpenFile().getMainStream().setSync(true);
+                runtime.defineGlobalConstant("STDOUT", io);
+                runtime.getGlobalVariables().set("$>", io);
+                runtime.getGlobalVariables().set("$stdout", io);
+                runtime.getGlobalVariables().set("$defout", io);
+                runtime.getGlobalVariables().set("$stderr", stderr);
+                outWriter = writer;
+                outStream = stream;
+            } catch (UnsupportedEncodingException exp) {
+                throw new IllegalArgumentException(exp);
+            }
+        }
+    
+        private void flushOutput() throws ScriptException {
+            try {
+                if (outStream != null) {
+                    outStream.flush();
+                }
+                if (errStream != null) {
+                    errStream.flush();
+                }
+            } catch (IOException exp) {
+                throw new ScriptException(exp);
+            }
+        }
+
+        private void setErrorWriter(Writer writer) {
+            if (writer == errWriter) {
+                return;
+            }
+            try {
+                RubyIO dummy_io = 
+                    new RubyIO(runtime, new PrintStream(new WriterOutputStream(new StringWriter(), false)));
+                runtime.getGlobalVariables().set("$stderr", dummy_io); //discard unwanted warnings
+                WriterOutputStream stream = new WriterOutputStream(writer, true);
+                RubyIO io = new RubyIO(runtime, new PrintStream(stream));
+                io.getOpenFile().getMainStream().setSync(true);
+                runtime.defineGlobalConstant("STDERR", io);
+                runtime.getGlobalVariables().set("$stderr", io);
+                runtime.getGlobalVariables().set("$deferr", io);
+                errWriter = writer;
+                errStream = stream;
+            } catch (UnsupportedEncodingException exp) {
+                throw new IllegalArgumentException(exp);
+            }
         }
     }
 
@@ -584,17 +1452,34 @@ public class JRubyScriptEngine extends AbstractScriptEngine
         return ((enc = System.getProperty("file.encoding")) == null) ? "UTF-8" : enc;
     }
     
+    /*
+     * Decodes what the runtime writes and passes it on to a writer. The
+     * bytes are collected in a buffer and only decoded and written when it
+     * is full, on flush, which the engine calls after each evaluation,
+     * and, for a stream that flushes lines, at each newline. The decoder
+     * keeps its state between calls, so a character whose bytes are split
+     * between writes comes out whole.
+     */
     private class WriterOutputStream extends OutputStream {
 
-        private Writer writer;
-        private CharsetDecoder decoder;
+        private static final int BUFFER_SIZE = 8192;
+
+        private final Writer writer;
+        private final CharsetDecoder decoder;
+        private final boolean lineFlush;
+        // bytes not decoded yet, in write mode
+        private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+        private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
         
-        private WriterOutputStream(Writer writer) throws UnsupportedEncodingException {
-            this(writer, getEncoding());
+        private WriterOutputStream(Writer writer, boolean lineFlush)
+                                throws UnsupportedEncodingException {
+            this(writer, getEncoding(), lineFlush);
         }
         
-        private WriterOutputStream(Writer writer, String enc) throws UnsupportedEncodingException {
+        private WriterOutputStream(Writer writer, String enc, boolean lineFlush)
+                                throws UnsupportedEncodingException {
             this.writer = writer;
+            this.lineFlush = lineFlush;
             if (enc == null) {
                 throw new UnsupportedEncodingException("encoding is " + enc);
             }
@@ -610,7 +1495,8 @@ public class JRubyScriptEngine extends AbstractScriptEngine
         @Override
         public void close() throws IOException {
             synchronized(writer) {
-                decoder = null;
+                decode(true);
+                decoder.reset();
                 writer.close();
             }
         }
@@ -618,14 +1504,22 @@ public class JRubyScriptEngine extends AbstractScriptEngine
         @Override
         public void flush() throws IOException {
             synchronized(writer) {
+                decode(false);
                 writer.flush();
             }
         }
         
         @Override
         public void write(int b) throws IOException {
-            byte[] buffer = new byte[1];
-            write(buffer, 0, 1);
+            synchronized(writer) {
+                if (!bytes.hasRemaining()) {
+                    decode(false);
+                }
+                bytes.put((byte) b);
+                if (lineFlush && b == '\n') {
+                    flush();
+                }
+            }
         }
         
         @Override
@@ -635,31 +1529,56 @@ public class JRubyScriptEngine extends AbstractScriptEngine
 
         @Override
         public void write(byte[] buffer, int offset, int length) throws IOException {
+            if (offset < 0 || offset > buffer.length - length || length < 0) {
+                throw new IndexOutOfBoundsException();
+            }
             synchronized(writer) {
-                if (offset < 0 || offset > buffer.length - length || length < 0) {
-                    throw new IndexOutOfBoundsException();
+                boolean newline = false;
+                int end = offset + length;
+                while (offset < end) {
+                    if (!bytes.hasRemaining()) {
+                        decode(false);
+                    }
+                    int count = Math.min(end - offset, bytes.remaining());
+                    if (lineFlush && !newline) {
+                        for (int i = offset; i < offset + count; i++) {
+                            if (buffer[i] == '\n') {
+                                newline = true;
+                                break;
+                            }
+                        }
+                    }
+                    bytes.put(buffer, offset, count);
+                    offset += count;
                 }
-                if (length == 0) {
-                    return;
+                if (newline) {
+                    flush();
+                }
+            }
+        }
+
+        /*
+         * Decodes the buffered bytes and writes the characters, keeping the
+         * bytes of an incomplete character unless the input has ended.
+         */
+        private void decode(boolean endOfInput) throws IOException {
+            bytes.flip();
+            while (decoder.decode(bytes, chars, endOfInput).isOverflow()) {
+                writeChars();
+            }
+            if (endOfInput) {
+                while (decoder.flush(chars).isOverflow()) {
+                    writeChars();
                 }
-                ByteBuffer bytes = ByteBuffer.wrap(buffer, offset, length);
-                CharBuffer chars = CharBuffer.allocate(length);
-                convert(bytes, chars);
-                char[] cbuf = new char[chars.length()];
-                chars.get(cbuf, 0, chars.length());
-                writer.write(cbuf);
-                writer.flush();
             }
+            bytes.compact();
+            writeChars();
         }
 
-        private void convert(ByteBuffer bytes, CharBuffer chars) throws IOException {
-            decoder.reset();
-            chars.clear();
-            CoderResult result = decoder.decode(bytes, chars, true);
-            if (result.isError() || result.isOverflow()) {
-                throw new IOException(result.toString());
-            } else if (result.isUnderflow()) {
-                chars.flip();
+        private void writeChars() throws IOException {
+            if (chars.position() > 0) {
+                writer.write(chars.array(), 0, chars.position());
+                chars.clear();
             }
         }
     }
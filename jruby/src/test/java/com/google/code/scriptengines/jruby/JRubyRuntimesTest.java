@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.jruby;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.script.ScriptException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of an engine with more than one Ruby runtime.
+ */
+public class JRubyRuntimesTest extends TestCase {
+
+    // waits for the latch $release, for 30 seconds at most
+    private static final String AWAIT =
+            "$release.await(30, java.util.concurrent.TimeUnit::SECONDS)";
+
+    private JRubyScriptEngine engine;
+
+    protected void setUp() {
+        engine = new JRubyScriptEngine(null, 2);
+    }
+
+    public void testRubyObjectsStayInTheirRuntime() throws ScriptException {
+        // the last runtime's hash is the one left in the context
+        engine.evalInAllRuntimes("$h = {'a' => 1}");
+        try {
+            engine.evalInAllRuntimes("$h.class.equal?(Hash)");
+            fail("read a Hash of another runtime");
+        } catch (ScriptException e) {
+            assertTrue(e.getMessage(), e.getMessage().indexOf("another Ruby runtime") != -1);
+        }
+    }
+
+    public void testRubyObjectsAsArgumentsStayInTheirRuntime() throws Exception {
+        JRubyScriptEngine other = new JRubyScriptEngine(null, 1);
+        Object hash = other.eval("{'a' => 1}");
+        engine.evalInAllRuntimes("def size_of(x); x.size; end");
+        try {
+            engine.invokeFunction("size_of", hash);
+            fail("passed a Hash of another runtime");
+        } catch (ScriptException e) {
+            assertTrue(e.getMessage(), e.getMessage().indexOf("another Ruby runtime") != -1);
+        }
+        assertEquals(Long.valueOf(3), engine.invokeFunction("size_of", "abc"));
+    }
+
+    public void testConvertedValuesAreShared() throws ScriptException {
+        engine.evalInAllRuntimes("$s = 'text'; $n = 5; $f = 1.5; $t = true; $sym = :x");
+        assertEquals(Boolean.TRUE, engine.evalInAllRuntimes(
+                "$s == 'text' && $n == 5 && $f == 1.5 && $t && $sym.equal?(:x)"));
+        assertEquals("text", engine.get("s"));
+    }
+
+    public void testJavaObjectsAreShared() throws ScriptException {
+        Map<String, Object> map = new ConcurrentHashMap<String, Object>();
+        engine.put("m", map);
+        engine.evalInAllRuntimes("$m.put('count', $m.size)");
+        assertEquals(1, map.size());
+    }
+
+    /*
+     * Starts a thread that evaluates the script, which holds a runtime
+     * while it runs AWAIT. The result, or the exception, is left in
+     * result[0].
+     */
+    private Thread hold(final String script, final Object[] result) {
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    result[0] = engine.eval(script);
+                } catch (Throwable e) {
+                    result[0] = e;
+                }
+            }
+        };
+        t.start();
+        return t;
+    }
+
+    public void testRuntimesRunConcurrently() throws Exception {
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        engine.put("held", held);
+        engine.put("release", release);
+        Object[] result = new Object[1];
+        Thread t = hold("$held.countDown; " + AWAIT, result);
+        assertTrue(held.await(30, TimeUnit.SECONDS));
+        // the other runtime is free while the first is busy
+        assertEquals(Long.valueOf(2), engine.eval("1 + 1"));
+        release.countDown();
+        t.join();
+        assertEquals(Boolean.TRUE, result[0]);
+    }
+
+    public void testEvalInAllRuntimesDefinesMethodsInEach() throws Exception {
+        engine.evalInAllRuntimes("def twice(x); 2 * x; end");
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        engine.put("held", held);
+        engine.put("release", release);
+        Object[] result = new Object[1];
+        Thread t = hold("$held.countDown; " + AWAIT + " && twice(1)", result);
+        assertTrue(held.await(30, TimeUnit.SECONDS));
+        // whichever runtime this thread gets, the method is there
+        assertEquals(Long.valueOf(6), engine.invokeFunction("twice", 3));
+        release.countDown();
+        t.join();
+        assertEquals(Long.valueOf(2), result[0]);
+        assertEquals(Long.valueOf(8), engine.invokeFunction("twice", 4));
+    }
+
+    public void testInvokeMethodRunsInReceiversRuntime() throws Exception {
+        // a literal is made by the runtime running the call, so its class
+        // is another String in any runtime but the counter's own
+        engine.evalInAllRuntimes("class Counter; def initialize; @n = 0; end; "
+                + "def inc; ''.class.equal?(String) ? @n += 1 : -1; end; end");
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        engine.put("held", held);
+        engine.put("release", release);
+        Object[] result = new Object[1];
+        Thread t = hold("$counter = Counter.new; $held.countDown; " + AWAIT, result);
+        assertTrue(held.await(30, TimeUnit.SECONDS));
+        Object counter = engine.get("counter");
+        // this thread uses the other runtime
+        assertEquals(Long.valueOf(2), engine.eval("1 + 1"));
+        release.countDown();
+        t.join();
+        assertEquals(Boolean.TRUE, result[0]);
+        assertEquals(Long.valueOf(1), engine.invokeMethod(counter, "inc"));
+        assertEquals(Long.valueOf(2), engine.invokeMethod(counter, "inc"));
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.code.scriptengines.jruby;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of a single-runtime engine: persistence of the runtime between
+ * calls, output decoding, the class and file caches and global variables.
+ */
+public class JRubyScriptEngineTest extends TestCase {
+
+    private JRubyScriptEngine engine;
+    private StringWriter out;
+    private String encoding;
+    private File dir;
+
+    protected void setUp() throws IOException {
+        // the engine decodes output in the platform encoding
+        encoding = System.getProperty("sun.jnu.encoding");
+        System.setProperty("sun.jnu.encoding", "UTF-8");
+        engine = new JRubyScriptEngine(null, 1);
+        out = new StringWriter();
+        engine.getContext().setWriter(out);
+        dir = File.createTempFile("jruby", "test");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    protected void tearDown() {
+        if (encoding == null) {
+            System.clearProperty("sun.jnu.encoding");
+        } else {
+            System.setProperty("sun.jnu.encoding", encoding);
+        }
+        delete(dir);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static void write(File file, String text) throws IOException {
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(text);
+        } finally {
+            writer.close();
+        }
+    }
+
+    public void testTerminateOnEvalRunsAtExitAfterEachCall() throws ScriptException {
+        engine.setTerminateOnEval(true);
+        engine.eval("at_exit { print 'bye' }; print 'hi '");
+        assertEquals("hi bye", out.toString());
+        engine.close();
+        assertEquals("hi bye", out.toString());
+    }
+
+    public void testPersistentRuntimeKeepsStateUntilClose() throws ScriptException {
+        engine.setTerminateOnEval(false);
+        engine.eval("at_exit { print 'bye' }; def answer; 42; end; @seen = 1");
+        assertEquals("", out.toString());
+        assertEquals(Long.valueOf(42), engine.eval("answer"));
+        assertEquals(Long.valueOf(1), engine.eval("@seen"));
+        engine.close();
+        assertEquals("bye", out.toString());
+        engine.close();
+        assertEquals("bye", out.toString());
+    }
+
+    public void testCharacterSplitBetweenWritesIsDecodedWhole() throws ScriptException {
+        // the runtime hands its output over in blocks, and the engine
+        // decodes it in blocks of 8192 bytes, so a euro sign, three bytes
+        // in UTF-8, is split wherever it falls across a block boundary
+        for (int pad = 8188; pad <= 8192; pad++) {
+            out.getBuffer().setLength(0);
+            engine.eval("print 'a' * " + pad + " + \"\\342\\202\\254\" + 'z'");
+            String text = out.toString();
+            assertEquals(pad + 2, text.length());
+            assertEquals("\u20acz", text.substring(pad));
+        }
+    }
+
+    public void testDamagedClassCacheEntryIsReplaced() throws Exception {
+        engine.setClassCache(dir);
+        String script = "$x = 6 * 7";
+        engine.compile(script);
+        File[] entries = dir.listFiles();
+        assertEquals(1, entries.length);
+        long length = entries[0].length();
+        OutputStream damaged = new FileOutputStream(entries[0]);
+        try {
+            damaged.write(new byte[] { (byte) 0xca, (byte) 0xfe });
+        } finally {
+            damaged.close();
+        }
+
+        JRubyScriptEngine next = new JRubyScriptEngine(null, 1);
+        next.setClassCache(dir);
+        CompiledScript compiled = next.compile(script);
+        assertEquals(Long.valueOf(42), compiled.eval());
+        entries = dir.listFiles();
+        assertEquals(1, entries.length);
+        assertEquals(length, entries[0].length());
+    }
+
+    public void testEditedFileIsCompiledAgain() throws Exception {
+        File file = new File(dir, "script.rb");
+        write(file, "1");
+        engine.put(ScriptEngine.FILENAME, file.getPath());
+        // the reader is not read when the file is cached
+        assertEquals(Long.valueOf(1), engine.eval(new StringReader("")));
+        CompiledScript first = engine.compile(new StringReader(""));
+        assertSame(first, engine.compile(new StringReader("")));
+        write(file, "22");
+        assertEquals(Long.valueOf(22), engine.eval(new StringReader("")));
+        assertNotSame(first, engine.compile(new StringReader("")));
+    }
+
+    public void testAssignmentToGlobalReturnsNewValue() throws ScriptException {
+        engine.put("g", Long.valueOf(1));
+        assertEquals(Long.valueOf(14), engine.eval("($g = 7) * 2"));
+        assertEquals(Long.valueOf(7), engine.get("g"));
+        CompiledScript compiled = engine.compile("($g = $g + 1) * 10");
+        assertEquals(Long.valueOf(80), compiled.eval());
+        assertEquals(Long.valueOf(8), engine.get("g"));
+    }
+}